@@ -0,0 +1,109 @@
+package com.orange.common.logging.web;
+
+import static com.orange.common.logging.Stubs.stub;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.http.HttpException;
+import org.apache.http.message.BasicHttpRequest;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Startup time and first request latency benchmark of the filter stack
+ * ({@link RequestIdFilter}, {@link SessionIdFilter}, {@link PrincipalFilter}
+ * and {@link HttpRequestHandlerWithMdcPropagation})
+ * <p>
+ * Shall be run in a fresh JVM (or as a native image), as it measures class
+ * loading and initialization:
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) com.orange.common.logging.web.FilterStackStartupBenchmark [requests]
+ * </pre>
+ */
+public class FilterStackStartupBenchmark {
+	public static void main(String[] args) throws Exception {
+		long mainStart = System.nanoTime();
+		long jvmUptime = ManagementFactory.getRuntimeMXBean().getUptime();
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+		// 1: filter stack instantiation and init (as a servlet container would do)
+		long start = System.nanoTime();
+		FilterConfig config = stub(FilterConfig.class);
+		final Filter[] filters = { new RequestIdFilter(), new SessionIdFilter(), new PrincipalFilter() };
+		for (Filter filter : filters) {
+			filter.init(config);
+		}
+		final HttpRequestHandlerWithMdcPropagation handler = new HttpRequestHandlerWithMdcPropagation();
+		long initTime = System.nanoTime() - start;
+
+		// 2: first request (logging and outgoing call included)
+		Map<String, Object> answers = new HashMap<>();
+		answers.put("getSession", stub(HttpSession.class, Collections.<String, Object> singletonMap("getId", "node01abcdefghijklmnop")));
+		answers.put("getUserPrincipal", new Principal() {
+			@Override
+			public String getName() {
+				return "john.doe@acme.com";
+			}
+		});
+		Map<String, Object> attributes = new HashMap<>();
+		HttpServletRequest request = stub(HttpServletRequest.class, answers, attributes);
+		HttpServletResponse response = stub(HttpServletResponse.class);
+		final FilterChain servlet = new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+				LoggerFactory.getLogger(FilterStackStartupBenchmark.class).trace("processing request");
+				try {
+					handler.handle(new BasicHttpRequest("GET", "http://backend/things"), null, null);
+				} catch (HttpException e) {
+					throw new IOException(e);
+				}
+			}
+		};
+		FilterChain chain = new FilterChain() {
+			private int index;
+
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+				if (index < filters.length) {
+					filters[index++].doFilter(request, response, this);
+				} else {
+					index = 0;
+					servlet.doFilter(request, response);
+				}
+			}
+		};
+		start = System.nanoTime();
+		chain.doFilter(request, response);
+		long firstRequest = System.nanoTime() - start;
+
+		// 3: steady state (new request each time: request IDs are generated)
+		start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			attributes.clear();
+			chain.doFilter(request, response);
+		}
+		long steadyState = (System.nanoTime() - start) / requests;
+
+		System.out.println("JVM uptime before main:   " + jvmUptime + " ms");
+		System.out.println("filter stack init:        " + initTime / 1000 + " us");
+		System.out.println("first request:            " + firstRequest / 1000 + " us");
+		System.out.println("steady state (" + requests + " req): " + steadyState + " ns/request");
+		System.out.println("total (main):             " + (System.nanoTime() - mainStart) / 1000000 + " ms");
+	}
+}
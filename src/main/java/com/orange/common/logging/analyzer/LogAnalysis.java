@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.analyzer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Aggregated results of a JSON log analysis (see {@link LogAnalyzer}):
+ * per-{@code requestId} counts (and timelines of selected requests),
+ * {@code stack_hash} signatures and per-{@code userId} volume
+ * <p>
+ * Each chunk of log file produces its own analysis; analyses are then
+ * {@link #merge(LogAnalysis) merged}.
+ * <p>
+ * Request, user and stack hash counters are exact, and kept in memory: one
+ * entry per distinct value. Request counters are the largest (about 150 bytes
+ * per distinct {@code requestId}): analyzing ten million requests requires
+ * about 1.5 GB of heap.
+ *
+ * @author pismy
+ *
+ */
+public class LogAnalysis {
+	private final int maxTimelineEvents;
+	private final Set<String> timelineRequests;
+	private final Map<String, Request> requests = new HashMap<>();
+	private final Map<String, StackHash> stackHashes = new HashMap<>();
+	private final Map<String, User> users = new HashMap<>();
+	private long events;
+	private long bytes;
+	private long parseErrors;
+
+	/**
+	 * @param maxTimelineEvents
+	 *            max number of events kept in each request timeline (the
+	 *            earliest ones)
+	 * @param timelineRequests
+	 *            request IDs which timelines shall be built (other requests
+	 *            are only counted)
+	 */
+	public LogAnalysis(int maxTimelineEvents, Set<String> timelineRequests) {
+		this.maxTimelineEvents = maxTimelineEvents;
+		this.timelineRequests = timelineRequests;
+	}
+
+	/**
+	 * Accounts one log event
+	 *
+	 * @param size
+	 *            the size of the JSON line (in bytes)
+	 */
+	void add(Event event, String requestId, String userId, String stackHash, int size) {
+		events++;
+		bytes += size;
+		if (requestId != null) {
+			Request request = requests.get(requestId);
+			if (request == null) {
+				request = new Request(requestId);
+				requests.put(requestId, request);
+			}
+			request.add(event, timelineRequests.contains(requestId) ? maxTimelineEvents : 0);
+		}
+		if (stackHash != null) {
+			StackHash hash = stackHashes.get(stackHash);
+			if (hash == null) {
+				hash = new StackHash(stackHash, event);
+				stackHashes.put(stackHash, hash);
+			} else {
+				hash.add(event);
+			}
+		}
+		if (userId != null) {
+			User user = users.get(userId);
+			if (user == null) {
+				user = new User(userId);
+				users.put(userId, user);
+			}
+			user.events++;
+			user.bytes += size;
+		}
+	}
+
+	void parseError() {
+		parseErrors++;
+	}
+
+	/**
+	 * Merges another analysis into this one
+	 *
+	 * @return this analysis
+	 */
+	public LogAnalysis merge(LogAnalysis other) {
+		events += other.events;
+		bytes += other.bytes;
+		parseErrors += other.parseErrors;
+		for (Request request : other.requests.values()) {
+			Request mine = requests.get(request.requestId);
+			if (mine == null) {
+				requests.put(request.requestId, request);
+			} else {
+				mine.merge(request, maxTimelineEvents);
+			}
+		}
+		for (StackHash hash : other.stackHashes.values()) {
+			StackHash mine = stackHashes.get(hash.hash);
+			if (mine == null) {
+				stackHashes.put(hash.hash, hash);
+			} else {
+				mine.merge(hash);
+			}
+		}
+		for (User user : other.users.values()) {
+			User mine = users.get(user.userId);
+			if (mine == null) {
+				users.put(user.userId, user);
+			} else {
+				mine.events += user.events;
+				mine.bytes += user.bytes;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Total number of analyzed events
+	 */
+	public long getEvents() {
+		return events;
+	}
+
+	/**
+	 * Total size of analyzed events (in bytes)
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Number of lines that could not be parsed
+	 */
+	public long getParseErrors() {
+		return parseErrors;
+	}
+
+	/**
+	 * Requests by {@code requestId}
+	 */
+	public Map<String, Request> getRequests() {
+		return requests;
+	}
+
+	/**
+	 * Stack trace signatures by {@code stack_hash}
+	 */
+	public Map<String, StackHash> getStackHashes() {
+		return stackHashes;
+	}
+
+	/**
+	 * Log volume by {@code userId}
+	 */
+	public Map<String, User> getUsers() {
+		return users;
+	}
+
+	/**
+	 * Returns the {@code k} stack hashes with the most occurrences
+	 */
+	public List<StackHash> topStackHashes(int k) {
+		return top(stackHashes.values(), k, new Comparator<StackHash>() {
+			@Override
+			public int compare(StackHash h1, StackHash h2) {
+				return Long.compare(h2.count, h1.count);
+			}
+		});
+	}
+
+	/**
+	 * Returns the {@code k} users with the biggest log volume
+	 */
+	public List<User> topUsers(int k) {
+		return top(users.values(), k, new Comparator<User>() {
+			@Override
+			public int compare(User u1, User u2) {
+				return Long.compare(u2.bytes, u1.bytes);
+			}
+		});
+	}
+
+	/**
+	 * Returns the {@code k} requests with the most events
+	 */
+	public List<Request> topRequests(int k) {
+		return top(requests.values(), k, new Comparator<Request>() {
+			@Override
+			public int compare(Request r1, Request r2) {
+				return Long.compare(r2.events, r1.events);
+			}
+		});
+	}
+
+	/**
+	 * Selects the {@code k} first values in the given order, without sorting
+	 * all of them
+	 */
+	private static <T> List<T> top(Iterable<T> values, int k, Comparator<T> order) {
+		if (k <= 0) {
+			return Collections.emptyList();
+		}
+		// heap of the k first values, headed by the last of them
+		Comparator<T> reversed = Collections.reverseOrder(order);
+		PriorityQueue<T> heap = new PriorityQueue<>(k, reversed);
+		for (T value : values) {
+			if (heap.size() < k) {
+				heap.add(value);
+			} else if (order.compare(value, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(value);
+			}
+		}
+		List<T> sorted = new ArrayList<>(heap);
+		Collections.sort(sorted, order);
+		return sorted;
+	}
+
+	/**
+	 * Writes a plain text report, with the timelines of the selected requests
+	 *
+	 * @param top
+	 *            number of entries in each top list
+	 */
+	public void report(Writer out, int top) throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+		out.write(events + " events (" + bytes + " bytes), " + requests.size() + " requests, " + users.size() + " users, " + stackHashes.size()
+				+ " stack hashes, " + parseErrors + " parse errors\n");
+
+		out.write("\nTop stack hashes (count, first seen):\n");
+		for (StackHash hash : topStackHashes(top)) {
+			out.write(String.format("  %-10s %10d  %s  %s%n", hash.hash, hash.count, format.format(new Date(hash.firstSeen)), hash.firstMessage));
+		}
+
+		out.write("\nTop users (events, bytes):\n");
+		for (User user : topUsers(top)) {
+			out.write(String.format("  %-30s %10d %14d%n", user.userId, user.events, user.bytes));
+		}
+
+		out.write("\nTop requests (events, errors, duration):\n");
+		for (Request request : topRequests(top)) {
+			out.write(String.format("  %-36s %8d %8d %8d ms%n", request.requestId, request.events, request.errors, request.getDuration()));
+		}
+
+		for (String requestId : timelineRequests) {
+			Request request = requests.get(requestId);
+			out.write("\nTimeline of request " + requestId + ":\n");
+			if (request == null) {
+				out.write("  (not found)\n");
+				continue;
+			}
+			for (Event event : request.getTimeline()) {
+				out.write(String.format("  %s %-5s [%s] %s - %s%n", format.format(new Date(event.timestamp)), event.level, event.threadName, event.loggerName,
+						event.message));
+			}
+			if (request.events > request.timeline.size()) {
+				out.write("  ... " + (request.events - request.timeline.size()) + " more events\n");
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * A log event (as kept in timelines)
+	 */
+	public static class Event {
+		private static final Comparator<Event> BY_TIMESTAMP = new Comparator<Event>() {
+			@Override
+			public int compare(Event e1, Event e2) {
+				return Long.compare(e1.timestamp, e2.timestamp);
+			}
+		};
+
+		private final long timestamp;
+		private final String level;
+		private final String threadName;
+		private final String loggerName;
+		private final String message;
+
+		Event(long timestamp, String level, String threadName, String loggerName, String message) {
+			this.timestamp = timestamp;
+			this.level = level;
+			this.threadName = threadName;
+			this.loggerName = loggerName;
+			this.message = message;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public String getLevel() {
+			return level;
+		}
+
+		public String getThreadName() {
+			return threadName;
+		}
+
+		public String getLoggerName() {
+			return loggerName;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	/**
+	 * The events of one request
+	 */
+	public static class Request {
+		private final String requestId;
+		private List<Event> timeline = Collections.emptyList();
+		private long events;
+		private long errors;
+		private long first = Long.MAX_VALUE;
+		private long last = Long.MIN_VALUE;
+
+		Request(String requestId) {
+			this.requestId = requestId;
+		}
+
+		void add(Event event, int maxTimelineEvents) {
+			events++;
+			if ("ERROR".equals(event.level)) {
+				errors++;
+			}
+			first = Math.min(first, event.timestamp);
+			last = Math.max(last, event.timestamp);
+			if (timeline.size() < maxTimelineEvents) {
+				if (timeline.isEmpty()) {
+					timeline = new ArrayList<>();
+				}
+				timeline.add(event);
+			}
+		}
+
+		void merge(Request other, int maxTimelineEvents) {
+			events += other.events;
+			errors += other.errors;
+			first = Math.min(first, other.first);
+			last = Math.max(last, other.last);
+			if (other.timeline.isEmpty()) {
+				return;
+			}
+			if (timeline.isEmpty()) {
+				timeline = new ArrayList<>();
+			}
+			timeline.addAll(other.timeline);
+			Collections.sort(timeline, Event.BY_TIMESTAMP);
+			if (timeline.size() > maxTimelineEvents) {
+				timeline.subList(maxTimelineEvents, timeline.size()).clear();
+			}
+		}
+
+		public String getRequestId() {
+			return requestId;
+		}
+
+		public long getEvents() {
+			return events;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * Time between the first and last event (in milliseconds)
+		 */
+		public long getDuration() {
+			return last - first;
+		}
+
+		/**
+		 * The (earliest) events of the request, sorted by timestamp (empty if
+		 * the request timeline was not selected)
+		 */
+		public List<Event> getTimeline() {
+			Collections.sort(timeline, Event.BY_TIMESTAMP);
+			return timeline;
+		}
+	}
+
+	/**
+	 * Occurrences of a stack trace signature
+	 */
+	public static class StackHash {
+		private final String hash;
+		private long count;
+		private long firstSeen;
+		private String firstMessage;
+
+		StackHash(String hash, Event event) {
+			this.hash = hash;
+			count = 1;
+			firstSeen = event.timestamp;
+			firstMessage = event.message;
+		}
+
+		void add(Event event) {
+			count++;
+			if (event.timestamp < firstSeen) {
+				firstSeen = event.timestamp;
+				firstMessage = event.message;
+			}
+		}
+
+		void merge(StackHash other) {
+			count += other.count;
+			if (other.firstSeen < firstSeen) {
+				firstSeen = other.firstSeen;
+				firstMessage = other.firstMessage;
+			}
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Timestamp of the earliest occurrence (in milliseconds)
+		 */
+		public long getFirstSeen() {
+			return firstSeen;
+		}
+
+		/**
+		 * Message of the earliest occurrence
+		 */
+		public String getFirstMessage() {
+			return firstMessage;
+		}
+	}
+
+	/**
+	 * Log volume of a user
+	 */
+	public static class User {
+		private final String userId;
+		private long events;
+		private long bytes;
+
+		User(String userId) {
+			this.userId = userId;
+		}
+
+		public String getUserId() {
+			return userId;
+		}
+
+		public long getEvents() {
+			return events;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Command line tool that analyzes JSON log files (one JSON object per line, as
+ * produced by the {@code LogstashEncoder}, with the {@code StackHashJsonProvider}
+ * and the tracking filters from the {@code web} package)
+ * <p>
+ * Files are memory-mapped, split into line-aligned chunks, and chunks are
+ * parsed in parallel (streaming JSON parsing) in a {@link ForkJoinPool}: files
+ * are never loaded as a whole. The analysis produces:
+ * <ul>
+ * <li>per-{@code requestId} event counts, and timelines of the
+ * {@link #setTimelineRequests(Collection) selected requests},
+ * <li>top {@code stack_hash} signatures, with counts and first-seen time,
+ * <li>per-{@code userId} log volume.
+ * </ul>
+ * Lines that are not JSON objects or have no {@code @timestamp} are counted
+ * as parse errors. Counters are kept in memory, one per distinct request ID:
+ * see {@link LogAnalysis} for the memory cost.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java -cp orange-mathoms-logging.jar:jackson-core.jar com.orange.common.logging.analyzer.LogAnalyzer [-top &lt;n&gt;] [-request &lt;requestId&gt;]... &lt;file&gt;...
+ * </pre>
+ *
+ * @author pismy
+ *
+ */
+public class LogAnalyzer {
+	private static final int MAX_MESSAGE_LENGTH = 256;
+
+	private final JsonFactory factory = new JsonFactory();
+	private int chunkSize = 64 * 1024 * 1024;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private int maxTimelineEvents = 100;
+	private String requestIdField = "requestId";
+	private String userIdField = "userId";
+	private String stackHashField = "stack_hash";
+	private Set<String> timelineRequests = Collections.emptySet();
+
+	public static void main(String[] args) throws IOException {
+		LogAnalyzer analyzer = new LogAnalyzer();
+		int top = 20;
+		List<String> timelines = new ArrayList<>();
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-top".equals(args[i]) && i + 1 < args.length) {
+				top = Integer.parseInt(args[++i]);
+			} else if ("-request".equals(args[i]) && i + 1 < args.length) {
+				timelines.add(args[++i]);
+			} else {
+				files.add(new File(args[i]));
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("usage: LogAnalyzer [-top <n>] [-request <requestId>]... <file>...");
+			System.exit(1);
+		}
+		analyzer.setTimelineRequests(timelines);
+		long start = System.currentTimeMillis();
+		LogAnalysis analysis = analyzer.analyze(files);
+		Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+		analysis.report(out, top);
+		System.err.println("analyzed in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Analyzes the given files
+	 */
+	public LogAnalysis analyze(List<File> files) throws IOException {
+		List<FileChannel> channels = new ArrayList<>();
+		try {
+			List<Chunk> chunks = new ArrayList<>();
+			for (File file : files) {
+				FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				channels.add(channel);
+				split(channel, chunks);
+			}
+			if (chunks.isEmpty()) {
+				return new LogAnalysis(maxTimelineEvents, timelineRequests);
+			}
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				return pool.invoke(new ChunksTask(chunks, 0, chunks.size()));
+			} finally {
+				pool.shutdown();
+			}
+		} finally {
+			for (FileChannel channel : channels) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Splits a file into line-aligned chunks of about {@link #getChunkSize()}
+	 * bytes
+	 */
+	private void split(FileChannel channel, List<Chunk> chunks) throws IOException {
+		long size = channel.size();
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		long start = 0;
+		while (start < size) {
+			long end = Math.min(size, start + chunkSize);
+			// move the end right after the next line feed
+			while (end < size) {
+				probe.clear();
+				int read = channel.read(probe, end);
+				int lf = -1;
+				for (int i = 0; i < read; i++) {
+					if (probe.get(i) == '\n') {
+						lf = i;
+						break;
+					}
+				}
+				if (lf >= 0) {
+					end += lf + 1;
+					break;
+				}
+				end += read;
+			}
+			chunks.add(new Chunk(channel, start, end - start));
+			start = end;
+		}
+	}
+
+	/**
+	 * Parses a line-aligned chunk
+	 */
+	LogAnalysis parse(ByteBuffer buffer) {
+		LogAnalysis analysis = new LogAnalysis(maxTimelineEvents, timelineRequests);
+		byte[] line = new byte[1024];
+		int limit = buffer.limit();
+		int lineStart = 0;
+		for (int i = 0; i <= limit; i++) {
+			if (i == limit || buffer.get(i) == '\n') {
+				int length = i - lineStart;
+				if (length > 0 && buffer.get(lineStart + length - 1) == '\r') {
+					length--;
+				}
+				if (length > 0) {
+					if (line.length < length) {
+						line = new byte[Math.max(length, line.length * 2)];
+					}
+					ByteBuffer slice = buffer.duplicate();
+					slice.position(lineStart);
+					slice.get(line, 0, length);
+					parseLine(line, length, analysis);
+				}
+				lineStart = i + 1;
+			}
+		}
+		return analysis;
+	}
+
+	private void parseLine(byte[] line, int length, LogAnalysis analysis) {
+		long timestamp = 0;
+		boolean hasTimestamp = false;
+		String level = null;
+		String threadName = null;
+		String loggerName = null;
+		String message = null;
+		String requestId = null;
+		String userId = null;
+		String stackHash = null;
+		try (JsonParser parser = factory.createParser(line, 0, length)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				analysis.parseError();
+				return;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (token == JsonToken.VALUE_NULL) {
+					continue;
+				}
+				if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+					parser.skipChildren();
+					continue;
+				}
+				if ("@timestamp".equals(name)) {
+					timestamp = OffsetDateTime.parse(parser.getText()).toInstant().toEpochMilli();
+					hasTimestamp = true;
+				} else if ("level".equals(name)) {
+					level = parser.getText();
+				} else if ("thread_name".equals(name)) {
+					threadName = parser.getText();
+				} else if ("logger_name".equals(name)) {
+					loggerName = parser.getText();
+				} else if ("message".equals(name)) {
+					message = parser.getText();
+					if (message != null && message.length() > MAX_MESSAGE_LENGTH) {
+						message = message.substring(0, MAX_MESSAGE_LENGTH) + "...";
+					}
+				} else if (requestIdField.equals(name)) {
+					requestId = parser.getText();
+				} else if (userIdField.equals(name)) {
+					userId = parser.getText();
+				} else if (stackHashField.equals(name)) {
+					stackHash = parser.getText();
+				}
+			}
+		} catch (IOException | DateTimeParseException e) {
+			analysis.parseError();
+			return;
+		}
+		if (!hasTimestamp) {
+			// would distort first-seen times and durations
+			analysis.parseError();
+			return;
+		}
+		analysis.add(new LogAnalysis.Event(timestamp, level, threadName, loggerName, message), requestId, userId, stackHash, length + 1);
+	}
+
+	/**
+	 * A line-aligned region of a file
+	 */
+	private static class Chunk {
+		private final FileChannel channel;
+		private final long position;
+		private final long size;
+
+		Chunk(FileChannel channel, long position, long size) {
+			this.channel = channel;
+			this.position = position;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Analyzes a range of chunks, splitting it in halves
+	 */
+	private class ChunksTask extends RecursiveTask<LogAnalysis> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Chunk> chunks;
+		private final int from;
+		private final int to;
+
+		ChunksTask(List<Chunk> chunks, int from, int to) {
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected LogAnalysis compute() {
+			if (to - from == 1) {
+				Chunk chunk = chunks.get(from);
+				try {
+					MappedByteBuffer buffer = chunk.channel.map(FileChannel.MapMode.READ_ONLY, chunk.position, chunk.size);
+					return parse(buffer);
+				} catch (IOException e) {
+					throw new IllegalStateException("Could not map log file chunk at " + chunk.position, e);
+				}
+			}
+			int middle = (from + to) >>> 1;
+			ChunksTask left = new ChunksTask(chunks, from, middle);
+			left.fork();
+			LogAnalysis right = new ChunksTask(chunks, middle, to).compute();
+			return left.join().merge(right);
+		}
+	}
+
+	// ================================================================================================================
+	// configuration
+	// ================================================================================================================
+
+	/**
+	 * Approximate size of chunks processed in parallel (in bytes)
+	 * <p>
+	 * Default: {@code 64 MB}
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Approximate size of chunks processed in parallel (in bytes)
+	 * <p>
+	 * Default: {@code 64 MB}
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Number of chunks processed in parallel
+	 * <p>
+	 * Default: number of available processors
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Number of chunks processed in parallel
+	 * <p>
+	 * Default: number of available processors
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Max number of events kept in each request timeline (the earliest ones)
+	 * <p>
+	 * Default: {@code 100}
+	 */
+	public int getMaxTimelineEvents() {
+		return maxTimelineEvents;
+	}
+
+	/**
+	 * Max number of events kept in each request timeline (the earliest ones)
+	 * <p>
+	 * Default: {@code 100}
+	 */
+	public void setMaxTimelineEvents(int maxTimelineEvents) {
+		this.maxTimelineEvents = maxTimelineEvents;
+	}
+
+	/**
+	 * Request IDs which timelines shall be built (other requests are only
+	 * counted)
+	 * <p>
+	 * Default: none
+	 */
+	public Set<String> getTimelineRequests() {
+		return timelineRequests;
+	}
+
+	/**
+	 * Request IDs which timelines shall be built (other requests are only
+	 * counted)
+	 * <p>
+	 * Default: none
+	 */
+	public void setTimelineRequests(Collection<String> timelineRequests) {
+		this.timelineRequests = new LinkedHashSet<>(timelineRequests);
+	}
+
+	/**
+	 * JSON field holding the request ID
+	 * <p>
+	 * Default: {@code requestId}
+	 */
+	public String getRequestIdField() {
+		return requestIdField;
+	}
+
+	/**
+	 * JSON field holding the request ID
+	 * <p>
+	 * Default: {@code requestId}
+	 */
+	public void setRequestIdField(String requestIdField) {
+		this.requestIdField = requestIdField;
+	}
+
+	/**
+	 * JSON field holding the user ID
+	 * <p>
+	 * Default: {@code userId}
+	 */
+	public String getUserIdField() {
+		return userIdField;
+	}
+
+	/**
+	 * JSON field holding the user ID
+	 * <p>
+	 * Default: {@code userId}
+	 */
+	public void setUserIdField(String userIdField) {
+		this.userIdField = userIdField;
+	}
+
+	/**
+	 * JSON field holding the stack hash
+	 * <p>
+	 * Default: {@code stack_hash}
+	 */
+	public String getStackHashField() {
+		return stackHashField;
+	}
+
+	/**
+	 * JSON field holding the stack hash
+	 * <p>
+	 * Default: {@code stack_hash}
+	 */
+	public void setStackHashField(String stackHashField) {
+		this.stackHashField = stackHashField;
+	}
+}
@@ -0,0 +1,7 @@
+/**
+ * Command line analysis of JSON log files (request timelines, stack hashes, log volume per user)
+ *  
+ * @author pismy
+ * 
+ */
+package com.orange.common.logging.analyzer;
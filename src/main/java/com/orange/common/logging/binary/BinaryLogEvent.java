@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.binary;
+
+import java.util.Map;
+
+/**
+ * A logging event read from a binary log file
+ *
+ * @author pismy
+ *
+ */
+public class BinaryLogEvent {
+	private final long timestamp;
+	private final String level;
+	private final String loggerName;
+	private final String threadName;
+	private final String message;
+	private final Map<String, String> mdc;
+	private final String stackTrace;
+
+	BinaryLogEvent(long timestamp, String level, String loggerName, String threadName, String message, Map<String, String> mdc, String stackTrace) {
+		this.timestamp = timestamp;
+		this.level = level;
+		this.loggerName = loggerName;
+		this.threadName = threadName;
+		this.message = message;
+		this.mdc = mdc;
+		this.stackTrace = stackTrace;
+	}
+
+	/**
+	 * Event timestamp (in milliseconds since epoch)
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Event level ({@code TRACE}, {@code DEBUG}, {@code INFO}, {@code WARN} or
+	 * {@code ERROR})
+	 */
+	public String getLevel() {
+		return level;
+	}
+
+	public String getLoggerName() {
+		return loggerName;
+	}
+
+	public String getThreadName() {
+		return threadName;
+	}
+
+	/**
+	 * The formatted message
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * MDC properties (never {@code null})
+	 */
+	public Map<String, String> getMdc() {
+		return mdc;
+	}
+
+	/**
+	 * The rendered stack trace, or {@code null}
+	 */
+	public String getStackTrace() {
+		return stackTrace;
+	}
+}
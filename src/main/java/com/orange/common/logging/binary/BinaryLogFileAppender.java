@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.binary;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.util.Duration;
+
+/**
+ * A Logback appender that writes events to a file in a compact binary format
+ * (see {@link BinaryLogFormat})
+ * <p>
+ * Events are buffered in blocks, in which recurring strings (logger and thread
+ * names, MDC keys and values such as {@code requestId}, {@code sessionId} or
+ * {@code userId}) are dictionary-encoded and timestamps are delta-encoded.
+ * Blocks are then compressed and appended to the file when they reach
+ * {@link #setBlockSize(int) blockSize}, after {@link #setFlushPeriod(Duration)
+ * flushPeriod}, or when the appender is stopped.
+ * <p>
+ * Files can be read back with {@link BinaryLogReader}, or converted to JSON
+ * with {@link BinaryLogToJson}. An incomplete block left at the end of the
+ * file (by a crash) is truncated when the appender starts.
+ *
+ * <h2>logback.xml configuration example</h2>
+ *
+ * <pre style="font-size: medium">
+ * &lt;appender name="BINARY" class="com.orange.common.logging.binary.BinaryLogFileAppender"&gt;
+ *   &lt;file&gt;/var/log/myapp/myapp.blog&lt;/file&gt;
+ *   &lt;blockSize&gt;262144&lt;/blockSize&gt;
+ *   &lt;flushPeriod&gt;5 seconds&lt;/flushPeriod&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ *
+ * @author pismy
+ *
+ */
+public class BinaryLogFileAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+	private String file;
+	private int blockSize = 64 * 1024;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private Duration flushPeriod = Duration.buildBySeconds(5);
+
+	private final Map<String, Integer> dictionary = new HashMap<>();
+	private final BinaryLogFormat.Buffer block = new BinaryLogFormat.Buffer(64 * 1024);
+	private byte[] compressed = new byte[0];
+	private int eventCount;
+	private long lastTimestamp;
+	private Deflater deflater;
+	private OutputStream out;
+	private ScheduledFuture<?> flushTask;
+
+	@Override
+	public void start() {
+		if (file == null) {
+			addError("No file set for appender " + getName());
+			return;
+		}
+		try {
+			File f = new File(file);
+			File parent = f.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+				addError("Could not create directory " + parent);
+				return;
+			}
+			truncateIncompleteBlock(f);
+			out = new FileOutputStream(f, true);
+		} catch (IOException e) {
+			addError("Could not open file " + file, e);
+			return;
+		}
+		deflater = new Deflater(compressionLevel);
+		if (flushPeriod != null && flushPeriod.getMilliseconds() > 0) {
+			long period = flushPeriod.getMilliseconds();
+			flushTask = getContext().getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+			getContext().addScheduledFuture(flushTask);
+		}
+		super.start();
+	}
+
+	/**
+	 * Truncates the file after its last complete block, so that blocks
+	 * appended after a crash remain readable
+	 */
+	private void truncateIncompleteBlock(File f) throws IOException {
+		if (!f.isFile()) {
+			return;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			long size = raf.length();
+			long end = 0;
+			while (end + BinaryLogFormat.HEADER_SIZE <= size) {
+				raf.seek(end);
+				if (raf.readInt() != BinaryLogFormat.MAGIC) {
+					break;
+				}
+				raf.readInt();
+				long next = end + BinaryLogFormat.HEADER_SIZE + (raf.readInt() & 0xFFFFFFFFL);
+				if (next > size) {
+					break;
+				}
+				end = next;
+			}
+			if (end < size) {
+				addWarn("Truncating incomplete block at the end of " + f + " (" + (size - end) + " bytes)");
+				raf.setLength(end);
+			}
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (!isStarted()) {
+			return;
+		}
+		super.stop();
+		if (flushTask != null) {
+			flushTask.cancel(false);
+			flushTask = null;
+		}
+		synchronized (block) {
+			flush();
+			try {
+				out.close();
+			} catch (IOException e) {
+				addError("Could not close file " + file, e);
+			}
+			deflater.end();
+		}
+	}
+
+	@Override
+	protected void append(ILoggingEvent event) {
+		synchronized (block) {
+			encode(event);
+			if (block.length >= blockSize) {
+				flush();
+			}
+		}
+	}
+
+	private void encode(ILoggingEvent event) {
+		block.writeZigZag(event.getTimeStamp() - lastTimestamp);
+		lastTimestamp = event.getTimeStamp();
+		block.writeByte(levelCode(event.getLevel()));
+		writeRef(event.getLoggerName());
+		writeRef(event.getThreadName());
+		String message = event.getFormattedMessage();
+		block.writeString(message == null ? "" : message);
+		Map<String, String> mdc = event.getMDCPropertyMap();
+		block.writeVarLong(mdc.size());
+		for (Entry<String, String> e : mdc.entrySet()) {
+			writeRef(e.getKey());
+			writeRef(e.getValue());
+		}
+		IThrowableProxy throwable = event.getThrowableProxy();
+		block.writeString(throwable == null ? "" : ThrowableProxyUtil.asString(throwable));
+		eventCount++;
+	}
+
+	private void writeRef(String value) {
+		if (value == null) {
+			value = "";
+		}
+		Integer idx = dictionary.get(value);
+		if (idx == null) {
+			dictionary.put(value, dictionary.size() + 1);
+			block.writeVarLong(0);
+			block.writeString(value);
+		} else {
+			block.writeVarLong(idx);
+		}
+	}
+
+	private static int levelCode(Level level) {
+		switch (level.toInt()) {
+		case Level.TRACE_INT:
+			return 0;
+		case Level.DEBUG_INT:
+			return 1;
+		case Level.INFO_INT:
+			return 2;
+		case Level.WARN_INT:
+			return 3;
+		default:
+			return 4;
+		}
+	}
+
+	/**
+	 * Compresses and writes the current block (if not empty)
+	 */
+	public void flush() {
+		synchronized (block) {
+			if (eventCount == 0 || out == null) {
+				return;
+			}
+			deflater.reset();
+			deflater.setInput(block.bytes, 0, block.length);
+			deflater.finish();
+			int bound = BinaryLogFormat.maxCompressedLength(block.length);
+			if (compressed.length < bound) {
+				compressed = new byte[bound];
+			}
+			int compressedLength = 0;
+			while (!deflater.finished()) {
+				if (compressedLength == compressed.length) {
+					compressed = Arrays.copyOf(compressed, compressed.length * 2);
+				}
+				compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+			}
+			ByteBuffer header = ByteBuffer.allocate(BinaryLogFormat.HEADER_SIZE);
+			header.putInt(BinaryLogFormat.MAGIC).putInt(block.length).putInt(compressedLength).putInt(eventCount);
+			try {
+				out.write(header.array());
+				out.write(compressed, 0, compressedLength);
+				out.flush();
+			} catch (IOException e) {
+				addError("Could not write block to " + file, e);
+			}
+			// start a new block (new dictionary)
+			block.reset();
+			dictionary.clear();
+			eventCount = 0;
+			lastTimestamp = 0;
+		}
+	}
+
+	/**
+	 * The file to write to
+	 */
+	public String getFile() {
+		return file;
+	}
+
+	/**
+	 * The file to write to
+	 */
+	public void setFile(String file) {
+		this.file = file;
+	}
+
+	/**
+	 * Uncompressed block size threshold (in bytes) above which the block is
+	 * written
+	 * <p>
+	 * Default: {@code 65536}
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Uncompressed block size threshold (in bytes) above which the block is
+	 * written
+	 * <p>
+	 * Default: {@code 65536}
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Deflate compression level (0-9)
+	 * <p>
+	 * Default: {@code -1} (Deflate default)
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Deflate compression level (0-9)
+	 * <p>
+	 * Default: {@code -1} (Deflate default)
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Period at which the current block is written, even if not full
+	 * <p>
+	 * Default: {@code 5 seconds}
+	 */
+	public Duration getFlushPeriod() {
+		return flushPeriod;
+	}
+
+	/**
+	 * Period at which the current block is written, even if not full
+	 * <p>
+	 * Default: {@code 5 seconds}
+	 */
+	public void setFlushPeriod(Duration flushPeriod) {
+		this.flushPeriod = flushPeriod;
+	}
+}
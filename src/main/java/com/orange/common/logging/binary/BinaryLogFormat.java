@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.binary;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary log file format constants and encoding helpers
+ * <p>
+ * A binary log file is a sequence of independent blocks. Each block starts
+ * with a 16 bytes header:
+ * <ul>
+ * <li>magic number (int),
+ * <li>uncompressed payload length (int),
+ * <li>compressed payload length (int),
+ * <li>number of events (int),
+ * </ul>
+ * followed by the Deflate-compressed payload, that is a sequence of events:
+ * <ul>
+ * <li>timestamp: delta from the previous event in the block (zigzag varlong),
+ * <li>level: one byte (0: TRACE to 4: ERROR),
+ * <li>logger name: string reference,
+ * <li>thread name: string reference,
+ * <li>formatted message: string literal,
+ * <li>MDC: number of entries (varint) followed by key and value string
+ * references,
+ * <li>stack trace: string literal, empty if none.
+ * </ul>
+ * String literals are encoded as their UTF-8 length (varint) followed by the
+ * UTF-8 bytes. String references are dictionary-encoded per block: a varint
+ * index ({@code > 0}) refers to an already defined string, {@code 0} defines a
+ * new string (string literal follows), that gets the next index.
+ *
+ * @author pismy
+ *
+ */
+final class BinaryLogFormat {
+	static final int MAGIC = 0x4F424C31; // OBL1
+	static final int HEADER_SIZE = 16;
+	/**
+	 * Max uncompressed payload length accepted when reading a block
+	 */
+	static final int MAX_BLOCK_LENGTH = 256 * 1024 * 1024;
+	static final String[] LEVELS = { "TRACE", "DEBUG", "INFO", "WARN", "ERROR" };
+	/**
+	 * Min encoded length of an event (one byte per field)
+	 */
+	static final int MIN_EVENT_LENGTH = 7;
+	/**
+	 * Max encoded length of a varlong
+	 */
+	static final int MAX_VARLONG_LENGTH = 10;
+
+	private BinaryLogFormat() {
+	}
+
+	/**
+	 * Upper bound of the compressed length of a payload (Deflate worst case is
+	 * a few bytes per 16 KB stored block)
+	 */
+	static int maxCompressedLength(int uncompressedLength) {
+		return uncompressedLength + (uncompressedLength >> 3) + 64;
+	}
+
+	/**
+	 * A growable byte buffer with varint encoding
+	 */
+	static class Buffer {
+		byte[] bytes;
+		int length;
+
+		Buffer(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		void ensureCapacity(int extra) {
+			if (length + extra > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+			}
+		}
+
+		void writeByte(int b) {
+			ensureCapacity(1);
+			bytes[length++] = (byte) b;
+		}
+
+		void writeVarLong(long value) {
+			ensureCapacity(10);
+			while ((value & ~0x7FL) != 0) {
+				bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte) value;
+		}
+
+		void writeZigZag(long value) {
+			writeVarLong((value << 1) ^ (value >> 63));
+		}
+
+		void writeString(String value) {
+			byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(utf8.length);
+			ensureCapacity(utf8.length);
+			System.arraycopy(utf8, 0, bytes, length, utf8.length);
+			length += utf8.length;
+		}
+
+		void reset() {
+			length = 0;
+		}
+	}
+
+	/**
+	 * A byte array reader with varint decoding
+	 * <p>
+	 * Every read is bounds-checked: a corrupted payload throws an
+	 * {@link IOException}.
+	 */
+	static class Reader {
+		private final byte[] bytes;
+		private final int limit;
+		private int position;
+
+		Reader(byte[] bytes, int limit) {
+			this.bytes = bytes;
+			this.limit = limit;
+		}
+
+		boolean hasRemaining() {
+			return position < limit;
+		}
+
+		int remaining() {
+			return limit - position;
+		}
+
+		int readByte() throws IOException {
+			if (position >= limit) {
+				throw new IOException("Corrupted binary log block (unexpected end of payload)");
+			}
+			return bytes[position++] & 0xFF;
+		}
+
+		long readVarLong() throws IOException {
+			long value = 0;
+			for (int i = 0, shift = 0; i < MAX_VARLONG_LENGTH; i++, shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Corrupted binary log block (varint too long)");
+		}
+
+		/**
+		 * Reads a varint that must be in the {@code [0, max]} range
+		 */
+		int readVarInt(int max) throws IOException {
+			long value = readVarLong();
+			if (value < 0 || value > max) {
+				throw new IOException("Corrupted binary log block (value out of range: " + value + ")");
+			}
+			return (int) value;
+		}
+
+		long readZigZag() throws IOException {
+			long raw = readVarLong();
+			return (raw >>> 1) ^ -(raw & 1);
+		}
+
+		String readString() throws IOException {
+			int len = readVarInt(remaining());
+			String value = new String(bytes, position, len, StandardCharsets.UTF_8);
+			position += len;
+			return value;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.binary;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming reader of binary log files written by
+ * {@link BinaryLogFileAppender}
+ * <p>
+ * Only one block is held in memory at a time. A truncated last block (file
+ * being written or after a crash) is ignored; {@link BinaryLogFileAppender}
+ * truncates it when restarted, so that the following blocks remain readable.
+ *
+ * @author pismy
+ *
+ */
+public class BinaryLogReader implements Closeable {
+	private final DataInputStream in;
+	private final Inflater inflater = new Inflater();
+	private final List<String> dictionary = new ArrayList<>();
+	private byte[] compressed = new byte[0];
+	private byte[] uncompressed = new byte[0];
+	private BinaryLogFormat.Reader block;
+	private int remainingEvents;
+	private long lastTimestamp;
+
+	public BinaryLogReader(File file) throws IOException {
+		this(new FileInputStream(file));
+	}
+
+	public BinaryLogReader(InputStream in) {
+		this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+	}
+
+	/**
+	 * Reads the next event
+	 *
+	 * @return the next event, or {@code null} at end of file
+	 * @throws IOException
+	 *             on I/O error or corrupted file
+	 */
+	public BinaryLogEvent read() throws IOException {
+		while (remainingEvents == 0) {
+			if (block != null && block.hasRemaining()) {
+				throw new IOException("Corrupted binary log block (unexpected data after last event)");
+			}
+			if (!readBlock()) {
+				return null;
+			}
+		}
+		remainingEvents--;
+		lastTimestamp += block.readZigZag();
+		int levelCode = block.readByte();
+		if (levelCode >= BinaryLogFormat.LEVELS.length) {
+			throw new IOException("Corrupted binary log block (bad level: " + levelCode + ")");
+		}
+		String level = BinaryLogFormat.LEVELS[levelCode];
+		String loggerName = readRef();
+		String threadName = readRef();
+		String message = block.readString();
+		// each entry takes at least 2 bytes
+		int mdcSize = block.readVarInt(block.remaining() / 2);
+		Map<String, String> mdc;
+		if (mdcSize == 0) {
+			mdc = Collections.emptyMap();
+		} else {
+			mdc = new LinkedHashMap<>(mdcSize * 2);
+			for (int i = 0; i < mdcSize; i++) {
+				mdc.put(readRef(), readRef());
+			}
+		}
+		String stackTrace = block.readString();
+		return new BinaryLogEvent(lastTimestamp, level, loggerName, threadName, message, mdc, stackTrace.isEmpty() ? null : stackTrace);
+	}
+
+	private String readRef() throws IOException {
+		int idx = block.readVarInt(dictionary.size());
+		if (idx == 0) {
+			String value = block.readString();
+			dictionary.add(value);
+			return value;
+		}
+		return dictionary.get(idx - 1);
+	}
+
+	private boolean readBlock() throws IOException {
+		int magic;
+		try {
+			magic = in.readInt();
+		} catch (EOFException e) {
+			return false;
+		}
+		if (magic != BinaryLogFormat.MAGIC) {
+			throw new IOException("Not a binary log block (bad magic number)");
+		}
+		try {
+			int uncompressedLength = in.readInt();
+			int compressedLength = in.readInt();
+			int events = in.readInt();
+			if (uncompressedLength < 0 || uncompressedLength > BinaryLogFormat.MAX_BLOCK_LENGTH || compressedLength < 0
+					|| compressedLength > BinaryLogFormat.maxCompressedLength(uncompressedLength) || events < 0
+					|| events > uncompressedLength / BinaryLogFormat.MIN_EVENT_LENGTH) {
+				throw new IOException("Corrupted binary log block (bad header)");
+			}
+			if (compressed.length < compressedLength) {
+				compressed = new byte[compressedLength];
+			}
+			if (uncompressed.length < uncompressedLength) {
+				uncompressed = new byte[uncompressedLength];
+			}
+			in.readFully(compressed, 0, compressedLength);
+			inflater.reset();
+			inflater.setInput(compressed, 0, compressedLength);
+			int len = 0;
+			while (len < uncompressedLength && !inflater.finished()) {
+				int n = inflater.inflate(uncompressed, len, uncompressedLength - len);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					// payload shorter than announced
+					break;
+				}
+				len += n;
+			}
+			if (len != uncompressedLength) {
+				throw new IOException("Corrupted binary log block");
+			}
+			block = new BinaryLogFormat.Reader(uncompressed, uncompressedLength);
+			remainingEvents = events;
+		} catch (EOFException e) {
+			// truncated last block
+			return false;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted binary log block", e);
+		}
+		dictionary.clear();
+		lastTimestamp = 0;
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		in.close();
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.binary;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map.Entry;
+
+/**
+ * Command line tool that converts binary log files to JSON lines (one JSON
+ * object per event, with Logstash field names)
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java -cp orange-mathoms-logging.jar com.orange.common.logging.binary.BinaryLogToJson &lt;file&gt;...
+ * </pre>
+ *
+ * @author pismy
+ *
+ */
+public class BinaryLogToJson {
+	private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+	private final Writer out;
+
+	public BinaryLogToJson(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Converts all events read from the given reader
+	 *
+	 * @return number of converted events
+	 */
+	public long convert(BinaryLogReader reader) throws IOException {
+		long count = 0;
+		BinaryLogEvent event;
+		while ((event = reader.read()) != null) {
+			write(event);
+			count++;
+		}
+		out.flush();
+		return count;
+	}
+
+	/**
+	 * Writes one event as a JSON line
+	 */
+	public void write(BinaryLogEvent event) throws IOException {
+		out.write("{\"@timestamp\":\"");
+		out.write(timestampFormat.format(new Date(event.getTimestamp())));
+		out.write('"');
+		field("message", event.getMessage());
+		field("logger_name", event.getLoggerName());
+		field("thread_name", event.getThreadName());
+		field("level", event.getLevel());
+		for (Entry<String, String> e : event.getMdc().entrySet()) {
+			field(e.getKey(), e.getValue());
+		}
+		if (event.getStackTrace() != null) {
+			field("stack_trace", event.getStackTrace());
+		}
+		out.write("}\n");
+	}
+
+	private void field(String name, String value) throws IOException {
+		out.write(',');
+		string(name);
+		out.write(':');
+		string(value);
+	}
+
+	private void string(String value) throws IOException {
+		out.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				} else {
+					out.write(c);
+				}
+			}
+		}
+		out.write('"');
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: " + BinaryLogToJson.class.getName() + " <file>...");
+			System.exit(2);
+		}
+		BinaryLogToJson converter = new BinaryLogToJson(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024));
+		for (String file : args) {
+			try (BinaryLogReader reader = new BinaryLogReader(new File(file))) {
+				converter.convert(reader);
+			}
+		}
+	}
+}
@@ -0,0 +1,7 @@
+/**
+ * Compact binary log file format: Logback appender, reader and JSON converter
+ *  
+ * @author pismy
+ * 
+ */
+package com.orange.common.logging.binary;
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Controller that adjusts the size of a
+ * {@link ThreadPoolTaskExecutorWithMdcPropagation} at runtime, based on the
+ * measured queue wait time and throughput
+ * <p>
+ * Every period, the controller computes the average time tasks waited in queue
+ * and the throughput (started tasks per second) since the previous period, and
+ * applies an AIMD (additive increase, multiplicative decrease) rule:
+ * <ul>
+ * <li>if the average queue wait is above {@link #setTargetQueueWait(long, TimeUnit)
+ * targetQueueWait}, the pool is grown by {@link #setIncreaseStep(int)
+ * increaseStep} threads,
+ * <li>unless the previous increase did not improve the throughput by at least
+ * {@link #setThroughputTolerance(double) throughputTolerance} of the expected
+ * (proportional) gain - the bottleneck is elsewhere and more threads would only
+ * add contention - in which case the pool is shrunk by
+ * {@link #setDecreaseRatio(double) decreaseRatio},
+ * <li>if the average queue wait is below half the target and some threads are
+ * idle, the pool is shrunk by {@link #setDecreaseRatio(double)
+ * decreaseRatio}.
+ * </ul>
+ * The pool size always remains between the given min and max sizes. Core and
+ * max pool sizes are set to the same value: the controlled executor is
+ * expected to use an unbounded queue.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * ThreadPoolTaskExecutorWithMdcPropagation executor = new ThreadPoolTaskExecutorWithMdcPropagation(4, 4, 1, TimeUnit.MINUTES, new LinkedBlockingQueue&lt;Runnable&gt;());
+ * new AdaptivePoolSizer(executor, 2, 64).start(scheduler, 1, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * @author pismy
+ *
+ */
+public class AdaptivePoolSizer implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdaptivePoolSizer.class);
+
+	private final ThreadPoolTaskExecutorWithMdcPropagation executor;
+	private final int minPoolSize;
+	private final int maxPoolSize;
+	private long targetQueueWait = TimeUnit.MILLISECONDS.toNanos(10);
+	private int increaseStep = 1;
+	private double decreaseRatio = 0.75;
+	private double throughputTolerance = 0.5;
+
+	private long lastTime;
+	private long lastStartedTasks;
+	private long lastQueueWaitTime;
+	private int sizeBeforeIncrease;
+	private volatile double lastThroughput;
+	private volatile long lastAverageQueueWait;
+
+	/**
+	 * Creates a controller for the given executor
+	 *
+	 * @param executor
+	 *            the executor to control
+	 * @param minPoolSize
+	 *            minimum pool size
+	 * @param maxPoolSize
+	 *            maximum pool size
+	 */
+	public AdaptivePoolSizer(ThreadPoolTaskExecutorWithMdcPropagation executor, int minPoolSize, int maxPoolSize) {
+		if (minPoolSize < 1 || maxPoolSize < minPoolSize) {
+			throw new IllegalArgumentException("Invalid pool size bounds: [" + minPoolSize + ", " + maxPoolSize + "]");
+		}
+		this.executor = executor;
+		this.minPoolSize = minPoolSize;
+		this.maxPoolSize = maxPoolSize;
+		lastTime = System.nanoTime();
+		lastStartedTasks = executor.getStartedTaskCount();
+		lastQueueWaitTime = executor.getQueueWaitTime(TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Schedules the controller periodically
+	 *
+	 * @return the scheduled future (to be cancelled to stop the controller)
+	 */
+	public ScheduledFuture<?> start(ScheduledExecutorService scheduler, long period, TimeUnit unit) {
+		return scheduler.scheduleAtFixedRate(this, period, period, unit);
+	}
+
+	@Override
+	public void run() {
+		try {
+			adjust();
+		} catch (RuntimeException e) {
+			LOGGER.error("pool size adjustment failed", e);
+		}
+	}
+
+	/**
+	 * Measures the executor since the previous call, and adjusts its size
+	 *
+	 * @return the new pool size
+	 */
+	public int adjust() {
+		return adjust(System.nanoTime(), executor.getStartedTaskCount(), executor.getQueueWaitTime(TimeUnit.NANOSECONDS), executor.getQueue().size(),
+				executor.getActiveCount());
+	}
+
+	/**
+	 * Adjusts the executor size from the given measures (cumulative counters)
+	 *
+	 * @param now
+	 *            current time (in nanoseconds)
+	 * @param startedTasks
+	 *            number of started tasks
+	 * @param queueWaitTime
+	 *            total queue wait time of started tasks (in nanoseconds)
+	 * @param waiting
+	 *            number of tasks in queue
+	 * @param active
+	 *            number of threads running a task
+	 * @return the new pool size
+	 */
+	synchronized int adjust(long now, long startedTasks, long queueWaitTime, int waiting, int active) {
+		long elapsed = now - lastTime;
+		long started = startedTasks - lastStartedTasks;
+		// tasks still in queue also count (they may starve)
+		long averageQueueWait = started == 0 ? (waiting == 0 ? 0 : elapsed) : (queueWaitTime - lastQueueWaitTime) / started;
+		double throughput = elapsed == 0 ? 0 : started * 1e9 / elapsed;
+
+		int size = executor.getCorePoolSize();
+		int newSize = size;
+		if (averageQueueWait > targetQueueWait) {
+			if (sizeBeforeIncrease > 0 && throughput <= lastThroughput * (1 + throughputTolerance * (size - sizeBeforeIncrease) / sizeBeforeIncrease)) {
+				// adding threads did not help
+				newSize = decrease(size);
+			} else {
+				newSize = size + increaseStep;
+			}
+		} else if (averageQueueWait < targetQueueWait / 2 && active < size) {
+			newSize = decrease(size);
+		}
+		newSize = Math.max(minPoolSize, Math.min(maxPoolSize, newSize));
+		if (newSize != size) {
+			resize(newSize);
+			LOGGER.debug("pool resized from {} to {} (queue wait: {}us, throughput: {}/s)", size, newSize, averageQueueWait / 1000, (long) throughput);
+		}
+
+		lastTime = now;
+		lastStartedTasks = startedTasks;
+		lastQueueWaitTime = queueWaitTime;
+		sizeBeforeIncrease = newSize > size ? size : 0;
+		lastThroughput = throughput;
+		lastAverageQueueWait = averageQueueWait;
+		return newSize;
+	}
+
+	private int decrease(int size) {
+		// removes at least one thread
+		return Math.min(size - 1, (int) (size * decreaseRatio));
+	}
+
+	private void resize(int size) {
+		if (size > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(size);
+			executor.setCorePoolSize(size);
+		} else {
+			executor.setCorePoolSize(size);
+			executor.setMaximumPoolSize(size);
+		}
+	}
+
+	/**
+	 * Average queue wait time measured during the last period
+	 */
+	public long getLastAverageQueueWait(TimeUnit unit) {
+		return unit.convert(lastAverageQueueWait, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Throughput (started tasks per second) measured during the last period
+	 */
+	public double getLastThroughput() {
+		return lastThroughput;
+	}
+
+	/**
+	 * Average queue wait time above which the pool is grown
+	 * <p>
+	 * Default: {@code 10 ms}
+	 */
+	public long getTargetQueueWait(TimeUnit unit) {
+		return unit.convert(targetQueueWait, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Average queue wait time above which the pool is grown
+	 * <p>
+	 * Default: {@code 10 ms}
+	 */
+	public void setTargetQueueWait(long targetQueueWait, TimeUnit unit) {
+		this.targetQueueWait = unit.toNanos(targetQueueWait);
+	}
+
+	/**
+	 * Number of threads added on increase
+	 * <p>
+	 * Default: {@code 1}
+	 */
+	public int getIncreaseStep() {
+		return increaseStep;
+	}
+
+	/**
+	 * Number of threads added on increase
+	 * <p>
+	 * Default: {@code 1}
+	 */
+	public void setIncreaseStep(int increaseStep) {
+		this.increaseStep = increaseStep;
+	}
+
+	/**
+	 * Factor applied to the pool size on decrease
+	 * <p>
+	 * Default: {@code 0.75}
+	 */
+	public double getDecreaseRatio() {
+		return decreaseRatio;
+	}
+
+	/**
+	 * Factor applied to the pool size on decrease
+	 * <p>
+	 * Default: {@code 0.75}
+	 */
+	public void setDecreaseRatio(double decreaseRatio) {
+		this.decreaseRatio = decreaseRatio;
+	}
+
+	/**
+	 * Minimum fraction of the expected (proportional) throughput gain that an
+	 * increase shall bring to be pursued
+	 * <p>
+	 * Default: {@code 0.5}
+	 */
+	public double getThroughputTolerance() {
+		return throughputTolerance;
+	}
+
+	/**
+	 * Minimum fraction of the expected (proportional) throughput gain that an
+	 * increase shall bring to be pursued
+	 * <p>
+	 * Default: {@code 0.5}
+	 */
+	public void setThroughputTolerance(double throughputTolerance) {
+		this.throughputTolerance = throughputTolerance;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+import org.slf4j.MDC;
+
+/**
+ * {@link ForkJoinPool} that propagates {@link MDC} context from calling thread
+ * to worker threads
+ * <p>
+ * Tasks submitted to the pool are wrapped with {@link RunnableWrapperWithMdc},
+ * {@link CallableWrapperWithMdc} or {@link ForkJoinTaskWrapperWithMdc}.
+ * Subtasks forked from a running task are not submitted through the pool: wrap
+ * them with {@link MdcSupport#wrap(ForkJoinTask)} (that reuses the running
+ * task's context snapshot) if they may be stolen by another worker.
+ * <p>
+ * Worker threads start with an empty context, and clear it upon termination.
+ * <p>
+ * Parallel streams run their (internal) subtasks in the pool they are started
+ * from, thus can't be wrapped: use
+ * {@link MdcSupport#callInParallel(int, Callable)} instead.
+ *
+ * @author pismy
+ *
+ */
+public class ForkJoinPoolWithMdcPropagation extends ForkJoinPool {
+
+	/**
+	 * Creates a pool with parallelism equal to
+	 * {@link Runtime#availableProcessors}
+	 */
+	public ForkJoinPoolWithMdcPropagation() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a pool with the given parallelism level
+	 *
+	 * @param parallelism
+	 *            the parallelism level
+	 */
+	public ForkJoinPoolWithMdcPropagation(int parallelism) {
+		this(parallelism, null, false);
+	}
+
+	/**
+	 * Creates a pool with the given parameters
+	 *
+	 * @param parallelism
+	 *            the parallelism level
+	 * @param handler
+	 *            the handler for internal worker threads that terminate due to
+	 *            unrecoverable errors (may be {@code null})
+	 * @param asyncMode
+	 *            if true, establishes local first-in-first-out scheduling mode
+	 *            for forked tasks that are never joined
+	 */
+	public ForkJoinPoolWithMdcPropagation(int parallelism, Thread.UncaughtExceptionHandler handler, boolean asyncMode) {
+		super(parallelism, new WorkerThreadFactory(null), handler, asyncMode);
+	}
+
+	/**
+	 * Creates a pool which worker threads run with the given context (see
+	 * {@link MdcSupport#callInParallel(int, Callable)})
+	 */
+	ForkJoinPoolWithMdcPropagation(int parallelism, Map<String, String> context) {
+		super(parallelism, new WorkerThreadFactory(context), null, false);
+	}
+
+	@Override
+	public <T> T invoke(ForkJoinTask<T> task) {
+		return super.invoke(new ForkJoinTaskWrapperWithMdc<>(task));
+	}
+
+	@Override
+	public void execute(ForkJoinTask<?> task) {
+		super.execute(new ForkJoinTaskWrapperWithMdc<>(task));
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		super.execute(new RunnableWrapperWithMdc(task));
+	}
+
+	@Override
+	public <T> ForkJoinTask<T> submit(ForkJoinTask<T> task) {
+		return super.submit(new ForkJoinTaskWrapperWithMdc<>(task));
+	}
+
+	@Override
+	public <T> ForkJoinTask<T> submit(Callable<T> task) {
+		return super.submit(new CallableWrapperWithMdc<>(task));
+	}
+
+	@Override
+	public <T> ForkJoinTask<T> submit(Runnable task, T result) {
+		return super.submit(new RunnableWrapperWithMdc(task), result);
+	}
+
+	@Override
+	public ForkJoinTask<?> submit(Runnable task) {
+		return super.submit(new RunnableWrapperWithMdc(task));
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) {
+		List<Callable<T>> wrapped = new ArrayList<>(tasks.size());
+		for (Callable<T> task : tasks) {
+			wrapped.add(new CallableWrapperWithMdc<>(task));
+		}
+		return super.invokeAll(wrapped);
+	}
+
+	/**
+	 * Creates worker threads that run with a given context (or an empty one)
+	 */
+	private static class WorkerThreadFactory implements ForkJoinWorkerThreadFactory {
+		private final Map<String, String> context;
+
+		WorkerThreadFactory(Map<String, String> context) {
+			this.context = context;
+		}
+
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			return new ForkJoinWorkerThread(pool) {
+				@Override
+				protected void onStart() {
+					super.onStart();
+					MdcSupport.setContext(context);
+				}
+
+				@Override
+				protected void onTermination(Throwable exception) {
+					MDC.clear();
+					super.onTermination(exception);
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+
+import org.slf4j.MDC;
+
+import com.orange.common.logging.mdc.ArrayMdcAdapter;
+import com.orange.common.logging.mdc.ArrayMdcMap;
+
+/**
+ * Helper {@link ForkJoinTask} wrapper that transfers {@link MDC} context values
+ * from the origin thread to the execution thread
+ * <p>
+ * The context is captured when the task is wrapped: subtasks wrapped and
+ * forked from a running task (typically {@code MdcSupport.wrap(subtask).fork()}
+ * from a {@code compute()} method) get the context of the running task,
+ * including the MDC changes it made. With the {@link ArrayMdcAdapter},
+ * subtasks of a task that did not change the context share its snapshot.
+ * <p>
+ * The execution thread's own context is restored once the task is complete.
+ *
+ * @author pismy
+ *
+ */
+public class ForkJoinTaskWrapperWithMdc<T> extends ForkJoinTask<T> {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Context snapshot of the wrapped task running in the current thread
+	 */
+	private static final ThreadLocal<Map<String, String>> RUNNING = new ThreadLocal<>();
+
+	private final ForkJoinTask<T> wrapped;
+	private final transient Map<String, String> map;
+
+	public ForkJoinTaskWrapperWithMdc(ForkJoinTask<T> wrapped) {
+		this.wrapped = wrapped;
+		// we are in the origin thread: capture the MDC, and share the running
+		// task's snapshot if made of the same entries
+		Map<String, String> context = MDC.getCopyOfContextMap();
+		Map<String, String> running = RUNNING.get();
+		if (context instanceof ArrayMdcMap && running instanceof ArrayMdcMap && ((ArrayMdcMap) context).hasSameEntries((ArrayMdcMap) running)) {
+			context = running;
+		}
+		map = context;
+	}
+
+	@Override
+	public T getRawResult() {
+		return wrapped.getRawResult();
+	}
+
+	@Override
+	protected void setRawResult(T value) {
+		// result is held by the wrapped task
+	}
+
+	@Override
+	protected boolean exec() {
+		// we are in the execution thread: set the original MDC
+		Map<String, String> previous = MdcSupport.replaceContext(map);
+		Map<String, String> previousRunning = RUNNING.get();
+		RUNNING.set(map);
+		try {
+			wrapped.invoke();
+			return true;
+		} finally {
+			if (previousRunning == null) {
+				RUNNING.remove();
+			} else {
+				RUNNING.set(previousRunning);
+			}
+			MdcLeakDetector.check(wrapped, map);
+			MdcSupport.setContext(previous);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Detects tasks that finish with a different {@link MDC} context than they
+ * started with (values added, removed or changed and not cleaned up)
+ * <p>
+ * Such tasks are harmless when run through the wrappers from this package (the
+ * execution thread's context is restored anyway), but reveal code that would
+ * misattribute log lines on pooled threads elsewhere.
+ * <p>
+ * The detector is optional: once {@link #install(int) installed}, every task
+ * run by {@link RunnableWrapperWithMdc} or {@link CallableWrapperWithMdc} is
+ * checked, leaking tasks are counted and the latest ones are sampled. Metrics
+ * are exposed through JMX ({@link MdcLeakDetectorMXBean}) under the
+ * {@code com.orange.common.logging:type=MdcLeakDetector} object name.
+ * <p>
+ * It may also be installed at startup by setting the
+ * {@code slf4j.tools.mdc_leak_detector.samples} Java property (number of
+ * samples to keep).
+ *
+ * @author pismy
+ *
+ */
+public class MdcLeakDetector implements MdcLeakDetectorMXBean {
+	private static final String OBJECT_NAME = "com.orange.common.logging:type=MdcLeakDetector";
+
+	private static volatile MdcLeakDetector installed;
+
+	static {
+		String samples = System.getProperty("slf4j.tools.mdc_leak_detector.samples");
+		if (samples != null) {
+			// never fail here: every wrapped task would then fail
+			try {
+				install(Integer.parseInt(samples.trim()));
+			} catch (NumberFormatException e) {
+				LoggerFactory.getLogger(MdcLeakDetector.class).warn("invalid slf4j.tools.mdc_leak_detector.samples value '{}': leak detector not installed", samples);
+			}
+		}
+	}
+
+	private final int maxSamples;
+	private final LongAdder checkedTasks = new LongAdder();
+	private final LongAdder leakingTasks = new LongAdder();
+	private final Deque<String> samples;
+
+	private MdcLeakDetector(int maxSamples) {
+		this.maxSamples = maxSamples;
+		this.samples = new ArrayDeque<>(maxSamples);
+	}
+
+	/**
+	 * Installs the leak detector (and registers it in JMX)
+	 *
+	 * @param maxSamples
+	 *            number of leaking tasks samples to keep (negative values are
+	 *            considered {@code 0})
+	 * @return the installed detector
+	 */
+	public static synchronized MdcLeakDetector install(int maxSamples) {
+		uninstall();
+		MdcLeakDetector detector = new MdcLeakDetector(Math.max(0, maxSamples));
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(detector, new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			// JMX is optional: detector remains available programmatically
+		}
+		installed = detector;
+		return detector;
+	}
+
+	/**
+	 * Uninstalls the leak detector (if any)
+	 */
+	public static synchronized void uninstall() {
+		if (installed != null) {
+			installed = null;
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+			} catch (Exception e) {
+				// not registered
+			}
+		}
+	}
+
+	/**
+	 * Returns the installed leak detector, or {@code null}
+	 */
+	public static MdcLeakDetector getInstalled() {
+		return installed;
+	}
+
+	/**
+	 * Checks the current {@link MDC} context against the one the task started
+	 * with (no-op if not installed)
+	 */
+	static void check(Object task, Map<String, String> started) {
+		MdcLeakDetector detector = installed;
+		if (detector != null) {
+			detector.doCheck(task, started);
+		}
+	}
+
+	private void doCheck(Object task, Map<String, String> started) {
+		checkedTasks.increment();
+		Map<String, String> finished = MDC.getCopyOfContextMap();
+		if (started == null) {
+			started = Collections.emptyMap();
+		}
+		if (finished == null) {
+			finished = Collections.emptyMap();
+		}
+		if (!started.equals(finished)) {
+			leakingTasks.increment();
+			if (maxSamples > 0) {
+				String sample = task.getClass().getName() + ": " + diff(started, finished);
+				synchronized (samples) {
+					if (samples.size() >= maxSamples) {
+						samples.removeFirst();
+					}
+					samples.addLast(sample);
+				}
+			}
+		}
+	}
+
+	private static String diff(Map<String, String> started, Map<String, String> finished) {
+		StringBuilder sb = new StringBuilder();
+		for (Entry<String, String> e : finished.entrySet()) {
+			String before = started.get(e.getKey());
+			if (before == null) {
+				sb.append(sb.length() == 0 ? "" : ", ").append('+').append(e.getKey()).append('=').append(e.getValue());
+			} else if (!before.equals(e.getValue())) {
+				sb.append(sb.length() == 0 ? "" : ", ").append('~').append(e.getKey()).append('=').append(e.getValue());
+			}
+		}
+		for (String key : started.keySet()) {
+			if (!finished.containsKey(key)) {
+				sb.append(sb.length() == 0 ? "" : ", ").append('-').append(key);
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public long getCheckedTasks() {
+		return checkedTasks.sum();
+	}
+
+	@Override
+	public long getLeakingTasks() {
+		return leakingTasks.sum();
+	}
+
+	@Override
+	public List<String> getSamples() {
+		synchronized (samples) {
+			return new ArrayList<>(samples);
+		}
+	}
+
+	@Override
+	public void reset() {
+		checkedTasks.reset();
+		leakingTasks.reset();
+		synchronized (samples) {
+			samples.clear();
+		}
+	}
+}
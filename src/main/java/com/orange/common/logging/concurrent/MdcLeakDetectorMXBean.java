@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.util.List;
+
+/**
+ * JMX management interface of {@link MdcLeakDetector}
+ *
+ * @author pismy
+ *
+ */
+public interface MdcLeakDetectorMXBean {
+	/**
+	 * Number of tasks checked since the last reset
+	 */
+	long getCheckedTasks();
+
+	/**
+	 * Number of tasks that finished with a different MDC context than they
+	 * started with, since the last reset
+	 */
+	long getLeakingTasks();
+
+	/**
+	 * Latest leaking tasks samples (task class and MDC differences)
+	 */
+	List<String> getSamples();
+
+	/**
+	 * Resets counters and samples
+	 */
+	void reset();
+}
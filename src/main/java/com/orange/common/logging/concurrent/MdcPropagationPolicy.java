@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.slf4j.MDC;
+import org.slf4j.spi.MDCAdapter;
+
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+
+import com.orange.common.logging.mdc.ArrayMdcAdapter;
+import com.orange.common.logging.mdc.ArrayMdcMap;
+
+/**
+ * Defines which {@link MDC} entries are captured in the origin thread and
+ * propagated to the execution thread
+ * <p>
+ * By default ({@link #ALL}), the whole context is propagated. Frameworks may
+ * fill the MDC with many keys, and large values, that are useless to
+ * asynchronous tasks and would be pinned in queues: a policy can restrict the
+ * propagated keys to an allow-list (in which case only those keys are read from
+ * the MDC), exclude keys with a deny-list, and truncate values longer than a
+ * given length.
+ * <p>
+ * With the {@code ArrayMdcAdapter} or Logback's adapter, filtered contexts are
+ * copied in a single pass from the adapter's own map.
+ * <p>
+ * Policies are immutable, and shall be created once:
+ *
+ * <pre>
+ * private static final MdcPropagationPolicy TRACKING = MdcPropagationPolicy.allow("requestId", "sessionId", "userId").withMaxValueLength(256);
+ * ...
+ * executor.setPropagationPolicy(TRACKING);
+ * </pre>
+ *
+ * @author pismy
+ *
+ */
+public final class MdcPropagationPolicy {
+	/**
+	 * Propagates the whole context
+	 */
+	public static final MdcPropagationPolicy ALL = new MdcPropagationPolicy(null, Collections.<String> emptySet(), Integer.MAX_VALUE);
+
+	private static final String LOGBACK_ADAPTER = "ch.qos.logback.classic.util.LogbackMDCAdapter";
+
+	private final String[] allowed;
+	private final Set<String> denied;
+	private final int maxValueLength;
+	private final ArrayMdcMap.EntryFilter filter = new ArrayMdcMap.EntryFilter() {
+		@Override
+		public boolean acceptKey(String key) {
+			return accept(key);
+		}
+
+		@Override
+		public String filterValue(String key, String value) {
+			return truncate(value);
+		}
+	};
+
+	private MdcPropagationPolicy(String[] allowed, Set<String> denied, int maxValueLength) {
+		this.allowed = allowed;
+		this.denied = denied;
+		this.maxValueLength = maxValueLength;
+	}
+
+	/**
+	 * Creates a policy that only propagates the given keys
+	 */
+	public static MdcPropagationPolicy allow(String... keys) {
+		// dedupe, preserving order
+		String[] allowed = new LinkedHashSet<>(Arrays.asList(keys)).toArray(new String[0]);
+		return new MdcPropagationPolicy(allowed, Collections.<String> emptySet(), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a policy that propagates all keys but the given ones
+	 */
+	public static MdcPropagationPolicy deny(String... keys) {
+		return new MdcPropagationPolicy(null, Collections.unmodifiableSet(new HashSet<>(Arrays.asList(keys))), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns a copy of this policy that truncates values longer than the given
+	 * length
+	 * <p>
+	 * Lazy values (see {@code LazyMdcValue}) that are not computed yet are
+	 * propagated as is: they are not computed to be measured.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the length is negative
+	 */
+	public MdcPropagationPolicy withMaxValueLength(int maxValueLength) {
+		if (maxValueLength < 0) {
+			throw new IllegalArgumentException("Invalid max value length: " + maxValueLength);
+		}
+		return new MdcPropagationPolicy(allowed, denied, maxValueLength);
+	}
+
+	/**
+	 * Max length of propagated values (longer values are truncated)
+	 */
+	public int getMaxValueLength() {
+		return maxValueLength;
+	}
+
+	private boolean accept(String key) {
+		if (allowed == null) {
+			return !denied.contains(key);
+		}
+		for (String k : allowed) {
+			if (k.equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String truncate(String value) {
+		return value == null || value.length() <= maxValueLength ? value : value.substring(0, maxValueLength);
+	}
+
+	/**
+	 * Captures the current {@link MDC} context according to this policy
+	 *
+	 * @return the captured context, or {@code null} if empty
+	 */
+	public Map<String, String> capture() {
+		if (allowed == null && denied.isEmpty() && maxValueLength == Integer.MAX_VALUE) {
+			return MDC.getCopyOfContextMap();
+		}
+		MDCAdapter adapter = MDC.getMDCAdapter();
+		if (adapter instanceof ArrayMdcAdapter) {
+			ArrayMdcMap snapshot = ((ArrayMdcAdapter) adapter).getCopyOfContextMap(filter);
+			return snapshot == null || snapshot.isEmpty() ? null : snapshot;
+		}
+		if (allowed != null) {
+			// only read the allowed keys
+			ArrayMdcMap snapshot = null;
+			for (String key : allowed) {
+				String value = truncate(MDC.get(key));
+				if (value != null) {
+					if (snapshot == null) {
+						snapshot = new ArrayMdcMap();
+					}
+					snapshot.put(key, value);
+				}
+			}
+			return snapshot;
+		}
+		// read Logback's (copy-on-write) map without copying it
+		Map<String, String> context = LOGBACK_ADAPTER.equals(adapter.getClass().getName()) ? LogbackContext.get(adapter) : MDC.getCopyOfContextMap();
+		if (context == null || context.isEmpty()) {
+			return null;
+		}
+		ArrayMdcMap snapshot = new ArrayMdcMap();
+		for (Entry<String, String> e : context.entrySet()) {
+			String value = accept(e.getKey()) ? truncate(e.getValue()) : null;
+			if (value != null) {
+				snapshot.put(e.getKey(), value);
+			}
+		}
+		return snapshot.isEmpty() ? null : snapshot;
+	}
+
+	/**
+	 * Isolates the (optional) Logback dependency
+	 */
+	private static class LogbackContext {
+		static Map<String, String> get(MDCAdapter adapter) {
+			return ((LogbackMDCAdapter) adapter).getPropertyMap();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("MdcPropagationPolicy[");
+		if (allowed != null) {
+			sb.append("allow=").append(Arrays.toString(allowed));
+		} else if (!denied.isEmpty()) {
+			sb.append("deny=").append(denied);
+		} else {
+			sb.append("all");
+		}
+		if (maxValueLength != Integer.MAX_VALUE) {
+			sb.append(", maxValueLength=").append(maxValueLength);
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -7,7 +7,13 @@
  */
 package com.orange.common.logging.concurrent;
 
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.slf4j.MDC;
 
 public class MdcSupport {
     private MdcSupport() {
@@ -20,4 +26,144 @@ public class MdcSupport {
     public static Runnable wrap(Runnable runnable) {
         return new RunnableWrapperWithMdc(runnable);
     }
+
+    /**
+     * Wraps a {@link Callable}, capturing the {@link MDC} context according to
+     * the given policy
+     */
+    public static <T> Callable<T> wrap(Callable<T> callable, MdcPropagationPolicy policy) {
+        return new CallableWrapperWithMdc<>(callable, policy);
+    }
+
+    /**
+     * Wraps a {@link Runnable}, capturing the {@link MDC} context according to
+     * the given policy
+     */
+    public static Runnable wrap(Runnable runnable, MdcPropagationPolicy policy) {
+        return new RunnableWrapperWithMdc(runnable, policy);
+    }
+
+    /**
+     * Wraps a {@link ForkJoinTask} (see {@link ForkJoinTaskWrapperWithMdc})
+     * <p>
+     * Typically used to fork subtasks from a {@code compute()} method:
+     * 
+     * <pre>
+     * ForkJoinTask&lt;Long&gt; left = MdcSupport.wrap(new SumTask(from, middle)).fork();
+     * </pre>
+     */
+    public static <T> ForkJoinTask<T> wrap(ForkJoinTask<T> task) {
+        return new ForkJoinTaskWrapperWithMdc<>(task);
+    }
+
+    /**
+     * Calls the given task in a dedicated {@link ForkJoinPool} which worker
+     * threads all run with the caller's {@link MDC} context
+     * <p>
+     * Parallel streams started from the task run in the dedicated pool, thus
+     * keep the caller's context in all their subtasks:
+     * 
+     * <pre>
+     * List&lt;Score&gt; scores = MdcSupport.callInParallel(8, () -&gt; items.parallelStream().map(this::score).collect(toList()));
+     * </pre>
+     * 
+     * The pool is shut down once the task is complete.
+     * <p>
+     * Subtasks forked internally by parallel streams can't be wrapped: the
+     * context is set once for all when worker threads start, so each call pays
+     * the startup of the worker threads it uses (up to {@code parallelism}).
+     * When several calls share the same context (a batch job for instance),
+     * create the pool once with {@link #newParallelPool(int)} and use
+     * {@link #callInParallel(ForkJoinPool, Callable)} instead.
+     * 
+     * @param parallelism
+     *            the parallelism level of the dedicated pool
+     * @param task
+     *            the task to call
+     * @return the task result
+     * @throws Exception
+     *             any exception thrown by the task
+     */
+    public static <T> T callInParallel(int parallelism, Callable<T> task) throws Exception {
+        ForkJoinPool pool = newParallelPool(parallelism);
+        try {
+            return callInParallel(pool, task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Creates a {@link ForkJoinPool} which worker threads all run with the
+     * caller's {@link MDC} context (see
+     * {@link #callInParallel(int, Callable)})
+     * <p>
+     * The pool may be reused for any number of calls made with the same
+     * context, and shall be shut down by the caller.
+     * 
+     * @param parallelism
+     *            the parallelism level of the pool
+     */
+    public static ForkJoinPool newParallelPool(int parallelism) {
+        return new ForkJoinPoolWithMdcPropagation(parallelism, MDC.getCopyOfContextMap());
+    }
+
+    /**
+     * Calls the given task in the given pool (typically created with
+     * {@link #newParallelPool(int)}), and waits for its result
+     * 
+     * @param pool
+     *            the pool to run the task in
+     * @param task
+     *            the task to call
+     * @return the task result
+     * @throws Exception
+     *             any exception thrown by the task
+     */
+    public static <T> T callInParallel(ForkJoinPool pool, Callable<T> task) throws Exception {
+        try {
+            return pool.submit(task).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Calls the given task in a dedicated {@link ForkJoinPool} with
+     * parallelism equal to {@link Runtime#availableProcessors} (see
+     * {@link #callInParallel(int, Callable)})
+     */
+    public static <T> T callInParallel(Callable<T> task) throws Exception {
+        return callInParallel(Runtime.getRuntime().availableProcessors(), task);
+    }
+
+    /**
+     * Replaces the current {@link MDC} context
+     * 
+     * @param context
+     *            the context to set (may be {@code null})
+     * @return the previous context (may be {@code null})
+     */
+    static Map<String, String> replaceContext(Map<String, String> context) {
+        Map<String, String> previous = MDC.getCopyOfContextMap();
+        setContext(context);
+        return previous;
+    }
+
+    /**
+     * Sets the current {@link MDC} context ({@code null} clears it)
+     */
+    static void setContext(Map<String, String> context) {
+        if (context == null) {
+            MDC.clear();
+        } else {
+            MDC.setContextMap(context);
+        }
+    }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * {@link RejectedExecutionHandler} that counts and logs rejected tasks, then
+ * delegates to another policy
+ * <p>
+ * The warning is logged with the {@link MDC} context of the rejected task
+ * (captured when it was submitted), thus carries the ID of the request that
+ * was rejected. The calling thread's context is restored afterwards.
+ *
+ * @author pismy
+ *
+ */
+public class RejectedExecutionHandlerWithMdc implements RejectedExecutionHandler {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RejectedExecutionHandlerWithMdc.class);
+
+	private final RejectedExecutionHandler delegate;
+	private final LongAdder rejectedTasks = new LongAdder();
+
+	/**
+	 * Creates a handler that delegates to
+	 * {@link ThreadPoolExecutor.AbortPolicy}
+	 */
+	public RejectedExecutionHandlerWithMdc() {
+		this(new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Creates a handler that delegates to the given policy
+	 *
+	 * @param delegate
+	 *            the policy that actually handles rejected tasks
+	 */
+	public RejectedExecutionHandlerWithMdc(RejectedExecutionHandler delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+		rejectedTasks.increment();
+		if (LOGGER.isWarnEnabled()) {
+			if (r instanceof WrappedTask) {
+				Map<String, String> previous = MdcSupport.replaceContext(((WrappedTask) r).getContext());
+				try {
+					warn(executor);
+				} finally {
+					MdcSupport.setContext(previous);
+				}
+			} else {
+				warn(executor);
+			}
+		}
+		delegate.rejectedExecution(r, executor);
+	}
+
+	private void warn(ThreadPoolExecutor executor) {
+		LOGGER.warn("task rejected (pool size: {}, active: {}, queued: {}, rejected so far: {})", executor.getPoolSize(), executor.getActiveCount(),
+				executor.getQueue().size(), rejectedTasks.sum());
+	}
+
+	/**
+	 * Number of rejected tasks
+	 */
+	public long getRejectedTasks() {
+		return rejectedTasks.sum();
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Lock-free per-request timing accumulator
+ * <p>
+ * A request timing is started by the thread that handles the request (see
+ * {@code RequestIdFilter}), and is transferred - together with the {@code MDC}
+ * context - to the tasks wrapped by {@link RunnableWrapperWithMdc} and
+ * {@link CallableWrapperWithMdc} (thus to tasks executed by
+ * {@link ThreadPoolTaskExecutorWithMdcPropagation}). Each task then charges
+ * the time it spent waiting in the executor queue and the time it spent
+ * executing to the originating request.
+ * <p>
+ * Tasks submitted from a task are charged to the same request.
+ *
+ * @author pismy
+ *
+ */
+public final class RequestTiming {
+	private static final ThreadLocal<RequestTiming> CURRENT = new ThreadLocal<>();
+
+	private static final AtomicLongFieldUpdater<RequestTiming> TASKS = AtomicLongFieldUpdater.newUpdater(RequestTiming.class, "tasks");
+	private static final AtomicLongFieldUpdater<RequestTiming> QUEUED = AtomicLongFieldUpdater.newUpdater(RequestTiming.class, "queuedNanos");
+	private static final AtomicLongFieldUpdater<RequestTiming> EXECUTION = AtomicLongFieldUpdater.newUpdater(RequestTiming.class, "executionNanos");
+
+	private final long startNanos;
+	private volatile long endNanos;
+	private volatile long tasks;
+	private volatile long queuedNanos;
+	private volatile long executionNanos;
+
+	private RequestTiming() {
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Starts a new request timing, attached to the current thread
+	 *
+	 * @return the started timing
+	 */
+	public static RequestTiming start() {
+		RequestTiming timing = new RequestTiming();
+		CURRENT.set(timing);
+		return timing;
+	}
+
+	/**
+	 * Returns the request timing attached to the current thread (may be
+	 * {@code null})
+	 */
+	public static RequestTiming current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Attaches a request timing to the current thread
+	 *
+	 * @param timing
+	 *            the timing to attach (may be {@code null})
+	 * @return the previously attached timing (may be {@code null})
+	 */
+	static RequestTiming attach(RequestTiming timing) {
+		RequestTiming previous = CURRENT.get();
+		if (timing == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(timing);
+		}
+		return previous;
+	}
+
+	/**
+	 * Stops this request timing, and detaches it from the current thread
+	 * <p>
+	 * Tasks still running are still charged to this timing, but the total time
+	 * is frozen.
+	 */
+	public void stop() {
+		endNanos = System.nanoTime();
+		if (CURRENT.get() == this) {
+			CURRENT.remove();
+		}
+	}
+
+	/**
+	 * Charges a task to this request
+	 *
+	 * @param queued
+	 *            time spent in queue (in nanoseconds)
+	 * @param execution
+	 *            execution time (in nanoseconds)
+	 */
+	void charge(long queued, long execution) {
+		TASKS.incrementAndGet(this);
+		QUEUED.addAndGet(this, queued);
+		EXECUTION.addAndGet(this, execution);
+	}
+
+	/**
+	 * Total request time, from start to stop (or now if not stopped)
+	 */
+	public long getTotal(TimeUnit unit) {
+		long end = endNanos;
+		return unit.convert((end == 0 ? System.nanoTime() : end) - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Cumulated time spent by tasks waiting in executor queues
+	 */
+	public long getQueued(TimeUnit unit) {
+		return unit.convert(queuedNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Cumulated time spent by tasks executing
+	 */
+	public long getExecution(TimeUnit unit) {
+		return unit.convert(executionNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Number of completed asynchronous tasks
+	 */
+	public long getTasks() {
+		return tasks;
+	}
+
+	@Override
+	public String toString() {
+		return "total=" + getTotal(TimeUnit.MICROSECONDS) + "us, queued=" + getQueued(TimeUnit.MICROSECONDS) + "us, executing="
+				+ getExecution(TimeUnit.MICROSECONDS) + "us, tasks=" + tasks;
+	}
+}
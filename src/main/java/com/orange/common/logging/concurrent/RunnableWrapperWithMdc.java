@@ -14,24 +14,78 @@ import org.slf4j.MDC;
 /**
  * Helper {@link Runnable} wrapper that transfers {@link MDC} context values from
  * the origin thread to the execution thread
+ * <p>
+ * The execution thread's own context is restored once the task is complete,
+ * so that no value leaks into subsequent tasks.
+ * <p>
+ * The {@link RequestTiming} of the origin thread (if any) is also transferred,
+ * and charged with the time the task spent queued and executing.
  * 
  * @author crhx7117
  *
  */
-public class RunnableWrapperWithMdc implements Runnable {
+public class RunnableWrapperWithMdc implements Runnable, WrappedTask {
 	private final Runnable wrapped;
 	private final Map<String, String> map;
+	private final RequestTiming timing;
+	private final long submitTime;
 
 	public RunnableWrapperWithMdc(Runnable wrapped) {
-		this.wrapped = wrapped;
 		// we are in the origin thread: capture the MDC
-		map = MDC.getCopyOfContextMap();
+		this(wrapped, MDC.getCopyOfContextMap());
+	}
+
+	/**
+	 * Wraps a task, capturing the {@link MDC} context according to the given
+	 * policy
+	 */
+	public RunnableWrapperWithMdc(Runnable wrapped, MdcPropagationPolicy policy) {
+		this(wrapped, policy.capture());
+	}
+
+	/**
+	 * Wraps a task with an already captured {@link MDC} context (that may be
+	 * shared with other tasks)
+	 */
+	RunnableWrapperWithMdc(Runnable wrapped, Map<String, String> map) {
+		this.wrapped = wrapped;
+		this.map = map;
+		timing = RequestTiming.current();
+		submitTime = System.nanoTime();
+	}
+
+	@Override
+	public Map<String, String> getContext() {
+		return map;
+	}
+
+	@Override
+	public long getSubmitTime() {
+		return submitTime;
 	}
 
 	@Override
 	public void run() {
-		// we are in the execution thread: set the original MDC
-		MDC.setContextMap(map);
-		wrapped.run();
+		// we are in the execution thread: set the original MDC (and keep the
+		// execution thread's one)
+		Map<String, String> previous = MdcSupport.replaceContext(map);
+		RequestTiming previousTiming = null;
+		long startTime = 0;
+		if (timing != null) {
+			previousTiming = RequestTiming.attach(timing);
+			startTime = System.nanoTime();
+		}
+		try {
+			wrapped.run();
+		} finally {
+			if (timing != null) {
+				timing.charge(startTime - submitTime, System.nanoTime() - startTime);
+				RequestTiming.attach(previousTiming);
+			}
+			MdcLeakDetector.check(wrapped, map);
+			// restore the execution thread's MDC (the task may be run by the
+			// origin thread, such as with a CallerRunsPolicy)
+			MdcSupport.setContext(previous);
+		}
 	}
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.MDC;
+
+import com.orange.common.logging.mdc.ArrayMdcAdapter;
+import com.orange.common.logging.mdc.ArrayMdcMap;
+
+/**
+ * {@link ExecutorService} that routes tasks to a fixed stripe of
+ * single-threaded workers, by the hash of an {@link MDC} value (such as
+ * {@code requestId} or {@code sessionId}), and propagates the {@link MDC}
+ * context from calling thread to executor thread
+ * <p>
+ * Tasks submitted with the same value always run in submission order, on the
+ * same thread: per-key state (a session for instance) may be accessed without
+ * locking. Tasks submitted without the value (absent from the caller's
+ * context) are spread round-robin over the stripes.
+ * <p>
+ * With the {@link ArrayMdcAdapter}, consecutive tasks routed to the same stripe
+ * with an unchanged context share the same {@link MDC} snapshot (compared by
+ * identity).
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * ExecutorService sessionExecutor = new StripedExecutorWithMdcPropagation("sessionId", Runtime.getRuntime().availableProcessors());
+ * </pre>
+ *
+ * @author pismy
+ *
+ */
+public class StripedExecutorWithMdcPropagation extends AbstractExecutorService {
+	private final String mdcKey;
+	private final Stripe[] stripes;
+	private final AtomicInteger nextStripe = new AtomicInteger();
+	private volatile MdcPropagationPolicy propagationPolicy = MdcPropagationPolicy.ALL;
+
+	/**
+	 * Creates a striped executor with a {@link ThreadFactoryWithMdcCleanup}
+	 *
+	 * @param mdcKey
+	 *            the {@link MDC} key which value routes the tasks
+	 * @param stripes
+	 *            the number of single-threaded workers
+	 */
+	public StripedExecutorWithMdcPropagation(String mdcKey, int stripes) {
+		this(mdcKey, stripes, new ThreadFactoryWithMdcCleanup());
+	}
+
+	/**
+	 * Creates a striped executor
+	 *
+	 * @param mdcKey
+	 *            the {@link MDC} key which value routes the tasks
+	 * @param stripes
+	 *            the number of single-threaded workers
+	 * @param threadFactory
+	 *            the factory to use to create the workers
+	 */
+	public StripedExecutorWithMdcPropagation(String mdcKey, int stripes, ThreadFactory threadFactory) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("Invalid number of stripes: " + stripes);
+		}
+		this.mdcKey = mdcKey;
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new Stripe(threadFactory);
+		}
+	}
+
+	/**
+	 * The {@link MDC} key which value routes the tasks
+	 */
+	public String getMdcKey() {
+		return mdcKey;
+	}
+
+	/**
+	 * The number of single-threaded workers
+	 */
+	public int getStripes() {
+		return stripes.length;
+	}
+
+	/**
+	 * The policy that defines which {@link MDC} entries are propagated to tasks
+	 * <p>
+	 * Default: {@link MdcPropagationPolicy#ALL}
+	 */
+	public MdcPropagationPolicy getPropagationPolicy() {
+		return propagationPolicy;
+	}
+
+	/**
+	 * The policy that defines which {@link MDC} entries are propagated to tasks
+	 * <p>
+	 * Default: {@link MdcPropagationPolicy#ALL}
+	 */
+	public void setPropagationPolicy(MdcPropagationPolicy propagationPolicy) {
+		this.propagationPolicy = propagationPolicy;
+	}
+
+	/**
+	 * Returns the index of the stripe tasks submitted with the given
+	 * {@link MDC} value are routed to
+	 */
+	public int getStripeIndex(String value) {
+		int h = value.hashCode();
+		// spread high bits (as HashMap does)
+		h ^= h >>> 16;
+		return (h & Integer.MAX_VALUE) % stripes.length;
+	}
+
+	/**
+	 * Returns the stripe a task submitted from the current thread is routed to
+	 */
+	private Stripe currentStripe() {
+		String value = MDC.get(mdcKey);
+		int index = value == null ? (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.length : getStripeIndex(value);
+		return stripes[index];
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (task instanceof StripedFutureTask) {
+			// from submit(): already wrapped and routed (see newTaskFor)
+			((StripedFutureTask<?>) task).stripe.worker.execute(task);
+		} else {
+			Stripe stripe = currentStripe();
+			stripe.worker.execute(new RunnableWrapperWithMdc(task, stripe.capture(propagationPolicy)));
+		}
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Callable<T> task) {
+		// the MDC wrapper runs inside the future: the context is restored
+		// before get() returns
+		Stripe stripe = currentStripe();
+		return new StripedFutureTask<>(new CallableWrapperWithMdc<>(task, stripe.capture(propagationPolicy)), stripe);
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Runnable task, T result) {
+		Stripe stripe = currentStripe();
+		return new StripedFutureTask<>(Executors.callable(new RunnableWrapperWithMdc(task, stripe.capture(propagationPolicy)), result), stripe);
+	}
+
+	@Override
+	public void shutdown() {
+		for (Stripe stripe : stripes) {
+			stripe.worker.shutdown();
+		}
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		List<Runnable> pending = new ArrayList<>();
+		for (Stripe stripe : stripes) {
+			pending.addAll(stripe.worker.shutdownNow());
+		}
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		for (Stripe stripe : stripes) {
+			if (!stripe.worker.isShutdown()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		for (Stripe stripe : stripes) {
+			if (!stripe.worker.isTerminated()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Stripe stripe : stripes) {
+			if (!stripe.worker.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A single-threaded worker, and the last context captured for it
+	 */
+	private static class Stripe {
+		private final ThreadPoolExecutor worker;
+		private volatile Map<String, String> lastContext;
+
+		Stripe(ThreadFactory threadFactory) {
+			worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+		}
+
+		Map<String, String> capture(MdcPropagationPolicy policy) {
+			// we are in the origin thread: capture the MDC, and share the
+			// previous snapshot if made of the same entries (racy, but
+			// harmless)
+			Map<String, String> context = policy.capture();
+			Map<String, String> last = lastContext;
+			if (context instanceof ArrayMdcMap && last instanceof ArrayMdcMap && ((ArrayMdcMap) context).hasSameEntries((ArrayMdcMap) last)) {
+				return last;
+			}
+			lastContext = context;
+			return context;
+		}
+	}
+
+	/**
+	 * A task from {@code submit()}, bound to the stripe it was captured for
+	 */
+	private static class StripedFutureTask<T> extends FutureTask<T> {
+		private final Stripe stripe;
+
+		StripedFutureTask(Callable<T> callable, Stripe stripe) {
+			super(callable);
+			this.stripe = stripe;
+		}
+	}
+}
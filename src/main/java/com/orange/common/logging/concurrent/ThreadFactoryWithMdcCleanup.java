@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.MDC;
+
+/**
+ * {@link ThreadFactory} that creates threads starting with an empty {@link MDC}
+ * context
+ * <p>
+ * Some MDC adapters store the context in an {@link InheritableThreadLocal}: a
+ * pooled thread would then keep forever the context of the request that caused
+ * its creation. Threads created by this factory clear their context before
+ * running, and upon termination.
+ *
+ * @author pismy
+ *
+ */
+public class ThreadFactoryWithMdcCleanup implements ThreadFactory {
+	private final ThreadFactory delegate;
+
+	/**
+	 * Creates a factory based on {@link Executors#defaultThreadFactory()}
+	 */
+	public ThreadFactoryWithMdcCleanup() {
+		this(Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * Creates a factory based on the given one
+	 *
+	 * @param delegate
+	 *            the factory that actually creates threads
+	 */
+	public ThreadFactoryWithMdcCleanup(ThreadFactory delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public Thread newThread(final Runnable r) {
+		return delegate.newThread(new Runnable() {
+			@Override
+			public void run() {
+				MDC.clear();
+				try {
+					r.run();
+				} finally {
+					MDC.clear();
+				}
+			}
+		});
+	}
+}
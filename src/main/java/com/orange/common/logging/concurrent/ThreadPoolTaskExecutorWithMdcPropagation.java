@@ -7,29 +7,39 @@
  */
 package com.orange.common.logging.concurrent;
 
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.MDC;
 
 /**
  * {@link ThreadPoolTaskExecutor} that propagates {@link MDC} context from
  * calling thread to executor thread
+ * <p>
+ * It also measures the time tasks spend waiting in queue (see
+ * {@link AdaptivePoolSizer}).
  * 
  * @author pismy
  *
  */
 public class ThreadPoolTaskExecutorWithMdcPropagation extends ThreadPoolExecutor {
+	private final LongAdder startedTasks = new LongAdder();
+	private final LongAdder queueWaitTime = new LongAdder();
+	private volatile MdcPropagationPolicy propagationPolicy = MdcPropagationPolicy.ALL;
 	
     /**
      * Creates a new {@code ThreadPoolExecutor} with the given initial
-     * parameters and default thread factory and rejected execution handler.
+     * parameters, a {@link ThreadFactoryWithMdcCleanup} and default rejected
+     * execution handler.
      * It may be more convenient to use one of the {@link Executors} factory
      * methods instead of this general purpose constructor.
      *
@@ -56,7 +66,7 @@ public class ThreadPoolTaskExecutorWithMdcPropagation extends ThreadPoolExecutor
                               long keepAliveTime,
                               TimeUnit unit,
                               BlockingQueue<Runnable> workQueue) {
-        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue);
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, new ThreadFactoryWithMdcCleanup());
     }
 
     /**
@@ -95,7 +105,7 @@ public class ThreadPoolTaskExecutorWithMdcPropagation extends ThreadPoolExecutor
 
     /**
      * Creates a new {@code ThreadPoolExecutor} with the given initial
-     * parameters and default thread factory.
+     * parameters and a {@link ThreadFactoryWithMdcCleanup}.
      *
      * @param corePoolSize the number of threads to keep in the pool, even
      *        if they are idle, unless {@code allowCoreThreadTimeOut} is set
@@ -124,7 +134,7 @@ public class ThreadPoolTaskExecutorWithMdcPropagation extends ThreadPoolExecutor
                               TimeUnit unit,
                               BlockingQueue<Runnable> workQueue,
                               RejectedExecutionHandler handler) {
-        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, handler);
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, new ThreadFactoryWithMdcCleanup(), handler);
     }
 
     /**
@@ -166,22 +176,88 @@ public class ThreadPoolTaskExecutorWithMdcPropagation extends ThreadPoolExecutor
     
 	@Override
 	public void execute(Runnable task) {
-		super.execute(new RunnableWrapperWithMdc(task));
+		// tasks from submit() are already wrapped (see newTaskFor)
+		super.execute(task instanceof FutureTaskWithMdc ? task : new RunnableWrapperWithMdc(task, propagationPolicy));
 	}
 
 	@Override
-	public <T> Future<T> submit(Callable<T> task) {
-		return super.submit(new CallableWrapperWithMdc<>(task));
+	protected <T> RunnableFuture<T> newTaskFor(Callable<T> task) {
+		CallableWrapperWithMdc<T> wrapper = new CallableWrapperWithMdc<>(task, propagationPolicy);
+		return new FutureTaskWithMdc<>(wrapper, wrapper);
 	}
 
 	@Override
-	public Future<?> submit(Runnable task) {
-		return super.submit(new RunnableWrapperWithMdc(task));
+	protected <T> RunnableFuture<T> newTaskFor(Runnable task, T result) {
+		RunnableWrapperWithMdc wrapper = new RunnableWrapperWithMdc(task, propagationPolicy);
+		return new FutureTaskWithMdc<>(wrapper, result, wrapper);
 	}
-	
+
 	@Override
-	public <T> Future<T> submit(Runnable task, T result) {
-		return super.submit(new RunnableWrapperWithMdc(task), result);
+	protected void beforeExecute(Thread t, Runnable r) {
+		if (r instanceof WrappedTask) {
+			queueWaitTime.add(System.nanoTime() - ((WrappedTask) r).getSubmitTime());
+			startedTasks.increment();
+		}
+		super.beforeExecute(t, r);
+	}
+
+	/**
+	 * The policy that defines which {@link MDC} entries are propagated to tasks
+	 * <p>
+	 * Default: {@link MdcPropagationPolicy#ALL}
+	 */
+	public MdcPropagationPolicy getPropagationPolicy() {
+		return propagationPolicy;
+	}
+
+	/**
+	 * The policy that defines which {@link MDC} entries are propagated to tasks
+	 * <p>
+	 * Default: {@link MdcPropagationPolicy#ALL}
+	 */
+	public void setPropagationPolicy(MdcPropagationPolicy propagationPolicy) {
+		this.propagationPolicy = propagationPolicy;
+	}
+
+	/**
+	 * Number of tasks that started executing
+	 */
+	public long getStartedTaskCount() {
+		return startedTasks.sum();
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Cumulated time spent by started tasks waiting in queue
+	 */
+	public long getQueueWaitTime(TimeUnit unit) {
+		return unit.convert(queueWaitTime.sum(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * A {@link FutureTask} that wraps an already MDC-aware task (avoids
+	 * wrapping twice)
+	 */
+	private static class FutureTaskWithMdc<T> extends FutureTask<T> implements WrappedTask {
+		private final WrappedTask wrapper;
+
+		FutureTaskWithMdc(Callable<T> callable, WrappedTask wrapper) {
+			super(callable);
+			this.wrapper = wrapper;
+		}
+
+		FutureTaskWithMdc(Runnable runnable, T result, WrappedTask wrapper) {
+			super(runnable, result);
+			this.wrapper = wrapper;
+		}
+
+		@Override
+		public Map<String, String> getContext() {
+			return wrapper.getContext();
+		}
+
+		@Override
+		public long getSubmitTime() {
+			return wrapper.getSubmitTime();
+		}
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.concurrent;
+
+import java.util.Map;
+
+import org.slf4j.MDC;
+
+/**
+ * A task wrapped in the origin thread, that carries its {@link MDC} context
+ *
+ * @author pismy
+ *
+ */
+interface WrappedTask {
+	/**
+	 * The {@link MDC} context captured in the origin thread (may be
+	 * {@code null})
+	 */
+	Map<String, String> getContext();
+
+	/**
+	 * The time ({@link System#nanoTime()}) at which the task was wrapped
+	 */
+	long getSubmitTime();
+}
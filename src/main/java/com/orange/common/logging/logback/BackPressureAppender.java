@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.logback;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import ch.qos.logback.core.util.Duration;
+import net.logstash.logback.stacktrace.StackHasher;
+
+/**
+ * An asynchronous Logback appender wrapper that degrades logging under
+ * back-pressure instead of blocking the logging (request) threads
+ * <p>
+ * Events are queued, and forwarded to the attached appenders by a dedicated
+ * worker thread. The appender watches its queue depth and the latency of the
+ * attached appenders, and computes a pressure level:
+ * <ul>
+ * <li>when the queue fill ratio exceeds {@link #setSheddingThreshold(double)
+ * sheddingThreshold} or the average write latency exceeds
+ * {@link #setMaxWriteLatency(Duration) maxWriteLatency}, {@code TRACE} and
+ * {@code DEBUG} events are dropped,
+ * <li>at 1.5 times those thresholds, {@code INFO} events are dropped too,
+ * <li>at twice those thresholds, {@code WARN} events are dropped too.
+ * </ul>
+ * {@code ERROR} events and events from {@link #addPriorityLogger(String)
+ * priority loggers} are never shed: they are only lost if the queue is still
+ * full after {@link #setMaxBlockingTime(Duration) maxBlockingTime}. The write
+ * latency is only taken into account while events are waiting in the queue, so
+ * that logging recovers automatically once the queue is drained.
+ * <p>
+ * The stack hashes of dropped events carrying an exception are accounted, and
+ * a summary of what was dropped is periodically logged (see
+ * {@link #setSummaryPeriod(Duration)}) at {@code WARN} level. Changes of the
+ * pressure level are reported as Logback status messages, at most once per
+ * summary period (or once per minute if summaries are disabled).
+ *
+ * <h2>logback.xml configuration example</h2>
+ *
+ * <pre style="font-size: medium">
+ * &lt;appender name="BACK_PRESSURE" class="com.orange.common.logging.logback.BackPressureAppender"&gt;
+ *   &lt;queueSize&gt;4096&lt;/queueSize&gt;
+ *   &lt;maxWriteLatency&gt;5 milliseconds&lt;/maxWriteLatency&gt;
+ *   &lt;priorityLogger&gt;com.acme.audit&lt;/priorityLogger&gt;
+ *   &lt;appender-ref ref="FILE" /&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ *
+ * @author pismy
+ *
+ */
+public class BackPressureAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements AppenderAttachable<ILoggingEvent> {
+	private static final String[] LEVEL_NAMES = { "TRACE", "DEBUG", "INFO", "WARN", "ERROR" };
+	private static final int NO_SHEDDING = Level.TRACE_INT;
+	private static final long DEFAULT_STATUS_PERIOD = TimeUnit.MINUTES.toNanos(1);
+
+	private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+	private final LongAdder[] dropped = new LongAdder[LEVEL_NAMES.length];
+	private final StackHasher hasher = new StackHasher();
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicLong nextStatusTime = new AtomicLong();
+	private final AtomicInteger unreportedChanges = new AtomicInteger();
+
+	private int queueSize = 1024;
+	private double sheddingThreshold = 0.5;
+	private Duration maxWriteLatency = Duration.buildByMilliseconds(10);
+	private Duration maxBlockingTime = Duration.buildBySeconds(1);
+	private Duration summaryPeriod = Duration.buildByMinutes(1);
+	private boolean includeCallerData;
+	private final List<String> priorityLoggers = new ArrayList<>();
+	private String summaryLoggerName = BackPressureAppender.class.getName();
+
+	private BlockingQueue<ILoggingEvent> queue;
+	private Worker worker;
+	private SpaceSavingSketch droppedStacks;
+	private ScheduledFuture<?> summaryTask;
+	private volatile long writeLatency;
+	private volatile int sheddingLevel = NO_SHEDDING;
+	private volatile int maxQueueDepth;
+
+	public BackPressureAppender() {
+		for (int i = 0; i < dropped.length; i++) {
+			dropped[i] = new LongAdder();
+		}
+	}
+
+	@Override
+	public void start() {
+		if (!appenders.iteratorForAppenders().hasNext()) {
+			addError("No attached appender to " + getName());
+			return;
+		}
+		queue = new ArrayBlockingQueue<>(queueSize);
+		queueDepth.set(0);
+		nextStatusTime.set(System.nanoTime());
+		droppedStacks = new SpaceSavingSketch(256, 4);
+		worker = new Worker();
+		worker.setName("back-pressure-appender-" + getName());
+		worker.setDaemon(true);
+		worker.start();
+		if (summaryPeriod != null && summaryPeriod.getMilliseconds() > 0) {
+			long period = summaryPeriod.getMilliseconds();
+			summaryTask = getContext().getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					summary();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+			getContext().addScheduledFuture(summaryTask);
+		}
+		super.start();
+	}
+
+	@Override
+	public void stop() {
+		if (!isStarted()) {
+			return;
+		}
+		super.stop();
+		if (summaryTask != null) {
+			summaryTask.cancel(false);
+			summaryTask = null;
+		}
+		// let the worker drain the queue
+		worker.running = false;
+		worker.interrupt();
+		try {
+			worker.join(maxBlockingTime.getMilliseconds());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (worker.isAlive()) {
+			addWarn("Max flush time exceeded: " + queue.size() + " queued events were lost");
+		}
+		summary();
+		appenders.detachAndStopAllAppenders();
+	}
+
+	@Override
+	protected void append(ILoggingEvent event) {
+		int level = event.getLevel().toInt();
+		boolean priority = level >= Level.ERROR_INT || isPriority(event.getLoggerName());
+		if (!priority && level < updateSheddingLevel()) {
+			drop(event);
+			return;
+		}
+		event.prepareForDeferredProcessing();
+		if (includeCallerData) {
+			event.getCallerData();
+		}
+		boolean queued;
+		if (priority) {
+			try {
+				queued = queue.offer(event, maxBlockingTime.getMilliseconds(), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				queued = false;
+			}
+		} else {
+			queued = queue.offer(event);
+		}
+		if (queued) {
+			queueDepth.incrementAndGet();
+		} else {
+			drop(event);
+		}
+	}
+
+	private boolean isPriority(String loggerName) {
+		if (summaryLoggerName.equals(loggerName)) {
+			return true;
+		}
+		for (int i = 0; i < priorityLoggers.size(); i++) {
+			String prefix = priorityLoggers.get(i);
+			if (loggerName.startsWith(prefix) && (loggerName.length() == prefix.length() || loggerName.charAt(prefix.length()) == '.')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Computes the pressure from the queue depth and write latency
+	 *
+	 * @return the level below which events are dropped
+	 */
+	private int updateSheddingLevel() {
+		int depth = getQueueDepth();
+		if (depth > maxQueueDepth) {
+			maxQueueDepth = depth;
+		}
+		double pressure = depth / (sheddingThreshold * queueSize);
+		if (depth > 0) {
+			pressure = Math.max(pressure, (double) writeLatency / TimeUnit.MILLISECONDS.toNanos(maxWriteLatency.getMilliseconds()));
+		}
+		int level = pressure >= 2 ? Level.ERROR_INT : pressure >= 1.5 ? Level.WARN_INT : pressure >= 1 ? Level.INFO_INT : NO_SHEDDING;
+		if (level != sheddingLevel) {
+			sheddingLevel = level;
+			reportSheddingLevel(level, depth);
+		}
+		return level;
+	}
+
+	/**
+	 * Reports a change of the pressure level as a status message, unless one
+	 * was already reported during the current period
+	 */
+	private void reportSheddingLevel(int level, int depth) {
+		long now = System.nanoTime();
+		long next = nextStatusTime.get();
+		long period = summaryPeriod != null && summaryPeriod.getMilliseconds() > 0 ? TimeUnit.MILLISECONDS.toNanos(summaryPeriod.getMilliseconds())
+				: DEFAULT_STATUS_PERIOD;
+		if (now - next < 0 || !nextStatusTime.compareAndSet(next, now + period)) {
+			unreportedChanges.incrementAndGet();
+			return;
+		}
+		int unreported = unreportedChanges.getAndSet(0);
+		String changes = unreported > 0 ? " (" + unreported + " unreported changes)" : "";
+		if (level == NO_SHEDDING) {
+			addInfo("Back-pressure released: no more events dropped" + changes);
+		} else {
+			addWarn("Back-pressure (queue depth: " + depth + ", write latency: " + writeLatency / 1000 + "us): dropping events below "
+					+ Level.toLevel(level) + changes);
+		}
+	}
+
+	private void drop(ILoggingEvent event) {
+		dropped[levelIndex(event.getLevel())].increment();
+		IThrowableProxy proxy = event.getThrowableProxy();
+		if (proxy instanceof ThrowableProxy) {
+			droppedStacks.add(hasher.hexHash(((ThrowableProxy) proxy).getThrowable()), 1);
+		}
+	}
+
+	private static int levelIndex(Level level) {
+		return Math.min(LEVEL_NAMES.length - 1, Math.max(0, level.toInt() / Level.DEBUG_INT));
+	}
+
+	/**
+	 * Logs a summary of the events dropped since the previous summary (if any),
+	 * and resets the counters
+	 */
+	public void summary() {
+		long total = 0;
+		StringBuilder byLevel = new StringBuilder();
+		for (int i = 0; i < dropped.length; i++) {
+			long count = dropped[i].sumThenReset();
+			if (count > 0) {
+				byLevel.append(byLevel.length() == 0 ? "" : ", ").append(LEVEL_NAMES[i]).append(": ").append(count);
+				total += count;
+			}
+		}
+		int depth = maxQueueDepth;
+		maxQueueDepth = 0;
+		if (total > 0) {
+			Logger logger = LoggerFactory.getLogger(summaryLoggerName);
+			logger.warn("Dropped {} events under back-pressure ({}; max queue depth: {}, write latency: {}us); dropped stack hashes: {}", total, byLevel,
+					depth, writeLatency / 1000, droppedStacks.top(10));
+		}
+		droppedStacks.reset();
+	}
+
+	/**
+	 * Number of events dropped since the last summary
+	 */
+	public long getDroppedEvents() {
+		long total = 0;
+		for (LongAdder counter : dropped) {
+			total += counter.sum();
+		}
+		return total;
+	}
+
+	/**
+	 * Number of events waiting in queue
+	 */
+	public int getQueueDepth() {
+		// may be transiently negative, as events are counted once queued
+		return Math.max(0, queueDepth.get());
+	}
+
+	/**
+	 * Average time taken by the attached appenders to process an event
+	 */
+	public long getWriteLatency(TimeUnit unit) {
+		return unit.convert(writeLatency, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Forwards queued events to the attached appenders, and measures their
+	 * latency
+	 */
+	private class Worker extends Thread {
+		private volatile boolean running = true;
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					ILoggingEvent event = queue.take();
+					queueDepth.decrementAndGet();
+					write(event);
+				} catch (InterruptedException e) {
+					// stopping
+				}
+			}
+			for (ILoggingEvent event = queue.poll(); event != null; event = queue.poll()) {
+				queueDepth.decrementAndGet();
+				write(event);
+			}
+		}
+
+		private void write(ILoggingEvent event) {
+			long start = System.nanoTime();
+			appenders.appendLoopOnAppenders(event);
+			long latency = writeLatency;
+			// exponentially weighted moving average (single writer)
+			writeLatency = latency + (System.nanoTime() - start - latency) / 8;
+		}
+	}
+
+	// ================================================================================================================
+	// configuration
+	// ================================================================================================================
+
+	/**
+	 * Max number of queued events
+	 * <p>
+	 * Default: {@code 1024}
+	 */
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	/**
+	 * Max number of queued events
+	 * <p>
+	 * Default: {@code 1024}
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Queue fill ratio from which events start being dropped
+	 * <p>
+	 * Default: {@code 0.5}
+	 */
+	public double getSheddingThreshold() {
+		return sheddingThreshold;
+	}
+
+	/**
+	 * Queue fill ratio from which events start being dropped
+	 * <p>
+	 * Default: {@code 0.5}
+	 */
+	public void setSheddingThreshold(double sheddingThreshold) {
+		this.sheddingThreshold = sheddingThreshold;
+	}
+
+	/**
+	 * Average write latency from which events start being dropped
+	 * <p>
+	 * Default: {@code 10 milliseconds}
+	 */
+	public Duration getMaxWriteLatency() {
+		return maxWriteLatency;
+	}
+
+	/**
+	 * Average write latency from which events start being dropped
+	 * <p>
+	 * Default: {@code 10 milliseconds}
+	 */
+	public void setMaxWriteLatency(Duration maxWriteLatency) {
+		this.maxWriteLatency = maxWriteLatency;
+	}
+
+	/**
+	 * Max time an {@code ERROR} (or priority) event may block the logging thread
+	 * when the queue is full; also the max time to flush the queue on stop
+	 * <p>
+	 * Default: {@code 1 second}
+	 */
+	public Duration getMaxBlockingTime() {
+		return maxBlockingTime;
+	}
+
+	/**
+	 * Max time an {@code ERROR} (or priority) event may block the logging thread
+	 * when the queue is full; also the max time to flush the queue on stop
+	 * <p>
+	 * Default: {@code 1 second}
+	 */
+	public void setMaxBlockingTime(Duration maxBlockingTime) {
+		this.maxBlockingTime = maxBlockingTime;
+	}
+
+	/**
+	 * Period at which a summary of dropped events is logged
+	 * <p>
+	 * Default: {@code 1 minute}
+	 */
+	public Duration getSummaryPeriod() {
+		return summaryPeriod;
+	}
+
+	/**
+	 * Period at which a summary of dropped events is logged
+	 * <p>
+	 * Default: {@code 1 minute}
+	 */
+	public void setSummaryPeriod(Duration summaryPeriod) {
+		this.summaryPeriod = summaryPeriod;
+	}
+
+	/**
+	 * Whether caller data is computed before queuing events
+	 * <p>
+	 * Default: {@code false}
+	 */
+	public boolean isIncludeCallerData() {
+		return includeCallerData;
+	}
+
+	/**
+	 * Whether caller data is computed before queuing events
+	 * <p>
+	 * Default: {@code false}
+	 */
+	public void setIncludeCallerData(boolean includeCallerData) {
+		this.includeCallerData = includeCallerData;
+	}
+
+	/**
+	 * Adds a logger (and its descendants) which events are never shed
+	 */
+	public void addPriorityLogger(String loggerName) {
+		priorityLoggers.add(loggerName);
+	}
+
+	/**
+	 * Name of the logger used to log summaries (a priority logger)
+	 * <p>
+	 * Default: {@code com.orange.common.logging.logback.BackPressureAppender}
+	 */
+	public String getSummaryLoggerName() {
+		return summaryLoggerName;
+	}
+
+	/**
+	 * Name of the logger used to log summaries (a priority logger)
+	 * <p>
+	 * Default: {@code com.orange.common.logging.logback.BackPressureAppender}
+	 */
+	public void setSummaryLoggerName(String summaryLoggerName) {
+		this.summaryLoggerName = summaryLoggerName;
+	}
+
+	// ================================================================================================================
+	// AppenderAttachable
+	// ================================================================================================================
+
+	@Override
+	public void addAppender(Appender<ILoggingEvent> newAppender) {
+		appenders.addAppender(newAppender);
+	}
+
+	@Override
+	public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+		return appenders.iteratorForAppenders();
+	}
+
+	@Override
+	public Appender<ILoggingEvent> getAppender(String name) {
+		return appenders.getAppender(name);
+	}
+
+	@Override
+	public boolean isAttached(Appender<ILoggingEvent> appender) {
+		return appenders.isAttached(appender);
+	}
+
+	@Override
+	public void detachAndStopAllAppenders() {
+		appenders.detachAndStopAllAppenders();
+	}
+
+	@Override
+	public boolean detachAppender(Appender<ILoggingEvent> appender) {
+		return appenders.detachAppender(appender);
+	}
+
+	@Override
+	public boolean detachAppender(String name) {
+		return appenders.detachAppender(name);
+	}
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.logback;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import ch.qos.logback.core.util.Duration;
+
+/**
+ * A Logback appender wrapper that accounts the log volume (events and bytes)
+ * per value of a given {@link MDC} key and per logger, before forwarding events
+ * to the attached appenders
+ * <p>
+ * Helps finding - cheaply and in production - which user, tenant or endpoint
+ * fills the log pipeline. Counting relies on fixed-memory
+ * {@link SpaceSavingSketch sketches}, so the memory footprint does not depend on
+ * the number of distinct MDC values.
+ * <p>
+ * The top producers are periodically logged (see {@link #setDumpPeriod(Duration)})
+ * and are also exposed through JMX ({@link HeavyHittersMXBean}) under the
+ * {@code com.orange.common.logging:type=HeavyHitters,name=<appender name>}
+ * object name.
+ * <p>
+ * Bytes are estimated from the formatted message, the logger and thread names,
+ * the MDC entries and the stack trace elements; the actual encoded size depends
+ * on the downstream encoder.
+ *
+ * <h2>logback.xml configuration example</h2>
+ *
+ * <pre style="font-size: medium">
+ * &lt;appender name="HEAVY_HITTERS" class="com.orange.common.logging.logback.HeavyHittersAppender"&gt;
+ *   &lt;!-- MDC key to account log volume by --&gt;
+ *   &lt;mdcKey&gt;userId&lt;/mdcKey&gt;
+ *   &lt;topK&gt;10&lt;/topK&gt;
+ *   &lt;dumpPeriod&gt;5 minutes&lt;/dumpPeriod&gt;
+ *   &lt;appender-ref ref="TCP" /&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ *
+ * @author pismy
+ *
+ */
+public class HeavyHittersAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements AppenderAttachable<ILoggingEvent>, HeavyHittersMXBean {
+	private static final String NO_VALUE = "-";
+
+	private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+	private final LongAdder totalEvents = new LongAdder();
+	private final LongAdder totalBytes = new LongAdder();
+
+	private String mdcKey = "userId";
+	private int capacity = 1024;
+	private int stripes = 16;
+	private int topK = 20;
+	private Duration dumpPeriod;
+	private boolean resetOnDump = true;
+	private boolean jmx = true;
+	private String dumpLoggerName = HeavyHittersAppender.class.getName();
+
+	private SpaceSavingSketch byMdcValue;
+	private SpaceSavingSketch byLogger;
+	private ScheduledFuture<?> dumpTask;
+	private ObjectName objectName;
+
+	@Override
+	public void start() {
+		byMdcValue = new SpaceSavingSketch(capacity, stripes);
+		byLogger = new SpaceSavingSketch(capacity, stripes);
+		if (dumpPeriod != null && dumpPeriod.getMilliseconds() > 0) {
+			long period = dumpPeriod.getMilliseconds();
+			dumpTask = getContext().getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					dump();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+			getContext().addScheduledFuture(dumpTask);
+		}
+		if (jmx) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				objectName = new ObjectName("com.orange.common.logging:type=HeavyHitters,name=" + ObjectName.quote(getName() == null ? "default" : getName()));
+				if (server.isRegistered(objectName)) {
+					// owned by another appender: don't unregister it on stop
+					addWarn("Heavy hitters MBean " + objectName + " already registered: JMX disabled for this appender");
+					objectName = null;
+				} else {
+					server.registerMBean(this, objectName);
+				}
+			} catch (Exception e) {
+				addWarn("Could not register heavy hitters MBean", e);
+				objectName = null;
+			}
+		}
+		super.start();
+	}
+
+	@Override
+	public void stop() {
+		if (!isStarted()) {
+			return;
+		}
+		super.stop();
+		if (dumpTask != null) {
+			dumpTask.cancel(false);
+			dumpTask = null;
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				addWarn("Could not unregister heavy hitters MBean", e);
+			}
+			objectName = null;
+		}
+		appenders.detachAndStopAllAppenders();
+	}
+
+	@Override
+	protected void append(ILoggingEvent event) {
+		long bytes = estimateSize(event);
+		totalEvents.increment();
+		totalBytes.add(bytes);
+		String loggerName = event.getLoggerName();
+		// don't account our own reports
+		if (!dumpLoggerName.equals(loggerName)) {
+			String value = event.getMDCPropertyMap().get(mdcKey);
+			byMdcValue.add(value == null ? NO_VALUE : value, bytes);
+			byLogger.add(loggerName, bytes);
+		}
+		appenders.appendLoopOnAppenders(event);
+	}
+
+	/**
+	 * Estimates the serialized size of an event
+	 */
+	protected long estimateSize(ILoggingEvent event) {
+		long size = 0;
+		String message = event.getFormattedMessage();
+		if (message != null) {
+			size += message.length();
+		}
+		size += event.getLoggerName().length();
+		if (event.getThreadName() != null) {
+			size += event.getThreadName().length();
+		}
+		for (Entry<String, String> e : event.getMDCPropertyMap().entrySet()) {
+			size += e.getKey().length() + (e.getValue() == null ? 0 : e.getValue().length());
+		}
+		for (IThrowableProxy tp = event.getThrowableProxy(); tp != null; tp = tp.getCause()) {
+			size += tp.getClassName().length();
+			if (tp.getMessage() != null) {
+				size += tp.getMessage().length();
+			}
+			StackTraceElementProxy[] steps = tp.getStackTraceElementProxyArray();
+			// common frames are not rendered
+			for (int i = 0; i < steps.length - tp.getCommonFrames(); i++) {
+				size += steps[i].getSTEAsString().length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Logs the top producers (and resets counters if {@link #isResetOnDump()})
+	 */
+	public void dump() {
+		Logger logger = LoggerFactory.getLogger(dumpLoggerName);
+		logger.info("Top log producers by {} ({} events, {} bytes): {}", mdcKey, totalEvents.sum(), totalBytes.sum(), byMdcValue.top(topK));
+		logger.info("Top log producers by logger: {}", byLogger.top(topK));
+		if (resetOnDump) {
+			reset();
+		}
+	}
+
+	// ================================================================================================================
+	// JMX
+	// ================================================================================================================
+
+	@Override
+	public List<SpaceSavingSketch.Entry> getTopMdcValues() {
+		return byMdcValue.top(topK);
+	}
+
+	@Override
+	public List<SpaceSavingSketch.Entry> getTopLoggers() {
+		return byLogger.top(topK);
+	}
+
+	@Override
+	public long getTotalEvents() {
+		return totalEvents.sum();
+	}
+
+	@Override
+	public long getTotalBytes() {
+		return totalBytes.sum();
+	}
+
+	@Override
+	public void reset() {
+		totalEvents.reset();
+		totalBytes.reset();
+		byMdcValue.reset();
+		byLogger.reset();
+	}
+
+	// ================================================================================================================
+	// configuration
+	// ================================================================================================================
+
+	/**
+	 * The MDC key to account log volume by
+	 * <p>
+	 * Default: {@code userId}
+	 */
+	@Override
+	public String getMdcKey() {
+		return mdcKey;
+	}
+
+	/**
+	 * The MDC key to account log volume by
+	 * <p>
+	 * Default: {@code userId}
+	 */
+	public void setMdcKey(String mdcKey) {
+		this.mdcKey = mdcKey;
+	}
+
+	/**
+	 * Max number of counters kept per sketch (memory bound)
+	 * <p>
+	 * Default: {@code 1024}
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Max number of counters kept per sketch (memory bound)
+	 * <p>
+	 * Default: {@code 1024}
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Number of independently locked stripes per sketch
+	 * <p>
+	 * Default: {@code 16}
+	 */
+	public int getStripes() {
+		return stripes;
+	}
+
+	/**
+	 * Number of independently locked stripes per sketch
+	 * <p>
+	 * Default: {@code 16}
+	 */
+	public void setStripes(int stripes) {
+		this.stripes = stripes;
+	}
+
+	/**
+	 * Number of top producers reported
+	 * <p>
+	 * Default: {@code 20}
+	 */
+	public int getTopK() {
+		return topK;
+	}
+
+	/**
+	 * Number of top producers reported
+	 * <p>
+	 * Default: {@code 20}
+	 */
+	public void setTopK(int topK) {
+		this.topK = topK;
+	}
+
+	/**
+	 * Period at which top producers are logged
+	 * <p>
+	 * Default: none (no periodic dump)
+	 */
+	public Duration getDumpPeriod() {
+		return dumpPeriod;
+	}
+
+	/**
+	 * Period at which top producers are logged
+	 * <p>
+	 * Default: none (no periodic dump)
+	 */
+	public void setDumpPeriod(Duration dumpPeriod) {
+		this.dumpPeriod = dumpPeriod;
+	}
+
+	/**
+	 * Whether counters are reset after each periodic dump
+	 * <p>
+	 * Default: {@code true}
+	 */
+	public boolean isResetOnDump() {
+		return resetOnDump;
+	}
+
+	/**
+	 * Whether counters are reset after each periodic dump
+	 * <p>
+	 * Default: {@code true}
+	 */
+	public void setResetOnDump(boolean resetOnDump) {
+		this.resetOnDump = resetOnDump;
+	}
+
+	/**
+	 * Whether counters are exposed through JMX
+	 * <p>
+	 * Default: {@code true}
+	 */
+	public boolean isJmx() {
+		return jmx;
+	}
+
+	/**
+	 * Whether counters are exposed through JMX
+	 * <p>
+	 * Default: {@code true}
+	 */
+	public void setJmx(boolean jmx) {
+		this.jmx = jmx;
+	}
+
+	/**
+	 * Name of the logger used to dump top producers
+	 * <p>
+	 * Default: {@code com.orange.common.logging.logback.HeavyHittersAppender}
+	 */
+	public String getDumpLoggerName() {
+		return dumpLoggerName;
+	}
+
+	/**
+	 * Name of the logger used to dump top producers
+	 * <p>
+	 * Default: {@code com.orange.common.logging.logback.HeavyHittersAppender}
+	 */
+	public void setDumpLoggerName(String dumpLoggerName) {
+		this.dumpLoggerName = dumpLoggerName;
+	}
+
+	// ================================================================================================================
+	// AppenderAttachable
+	// ================================================================================================================
+
+	@Override
+	public void addAppender(Appender<ILoggingEvent> newAppender) {
+		appenders.addAppender(newAppender);
+	}
+
+	@Override
+	public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+		return appenders.iteratorForAppenders();
+	}
+
+	@Override
+	public Appender<ILoggingEvent> getAppender(String name) {
+		return appenders.getAppender(name);
+	}
+
+	@Override
+	public boolean isAttached(Appender<ILoggingEvent> appender) {
+		return appenders.isAttached(appender);
+	}
+
+	@Override
+	public void detachAndStopAllAppenders() {
+		appenders.detachAndStopAllAppenders();
+	}
+
+	@Override
+	public boolean detachAppender(Appender<ILoggingEvent> appender) {
+		return appenders.detachAppender(appender);
+	}
+
+	@Override
+	public boolean detachAppender(String name) {
+		return appenders.detachAppender(name);
+	}
+}
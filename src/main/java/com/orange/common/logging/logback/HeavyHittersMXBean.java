@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.logback;
+
+import java.util.List;
+
+/**
+ * JMX management interface of {@link HeavyHittersAppender}
+ *
+ * @author pismy
+ *
+ */
+public interface HeavyHittersMXBean {
+	/**
+	 * The MDC key events are accounted by
+	 */
+	String getMdcKey();
+
+	/**
+	 * Top log producers by MDC value since the last reset
+	 */
+	List<SpaceSavingSketch.Entry> getTopMdcValues();
+
+	/**
+	 * Top log producers by logger since the last reset
+	 */
+	List<SpaceSavingSketch.Entry> getTopLoggers();
+
+	/**
+	 * Total number of events since the last reset
+	 */
+	long getTotalEvents();
+
+	/**
+	 * Total (estimated) number of bytes since the last reset
+	 */
+	long getTotalBytes();
+
+	/**
+	 * Resets all counters
+	 */
+	void reset();
+}
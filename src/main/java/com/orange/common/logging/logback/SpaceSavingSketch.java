@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.logback;
+
+import java.beans.ConstructorProperties;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-memory heavy hitters counter, based on the <a href=
+ * "https://www.cs.ucsb.edu/sites/default/files/documents/2005-23.pdf">Space-Saving</a>
+ * algorithm
+ * <p>
+ * Counts events and bytes per key, ranked by bytes. Whatever the number of
+ * distinct keys, at most {@code capacity} counters are kept: when a new key
+ * shows up while the sketch is full, it replaces the smallest counter and
+ * inherits its value as an over-estimation error. Heavy hitters are thus
+ * always retained, and their counts are accurate up to {@link Entry#getError()
+ * error}.
+ * <p>
+ * Keys are spread over independent stripes (each one holding
+ * {@code capacity / stripes} counters) to limit contention between logging
+ * threads.
+ *
+ * @author pismy
+ *
+ */
+public class SpaceSavingSketch {
+	private final Stripe[] stripes;
+	private final int mask;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity
+	 *            total number of counters to keep
+	 * @param stripes
+	 *            number of stripes (rounded up to a power of 2)
+	 */
+	public SpaceSavingSketch(int capacity, int stripes) {
+		if (capacity <= 0 || stripes <= 0) {
+			throw new IllegalArgumentException("capacity and stripes must be positive");
+		}
+		int count = Integer.highestOneBit(stripes - 1) << 1;
+		if (count <= 0) {
+			count = 1;
+		}
+		this.stripes = new Stripe[count];
+		int perStripe = Math.max(1, capacity / count);
+		for (int i = 0; i < count; i++) {
+			this.stripes[i] = new Stripe(perStripe);
+		}
+		this.mask = count - 1;
+	}
+
+	/**
+	 * Accounts one event of the given size for the given key
+	 *
+	 * @param key
+	 *            key (must not be {@code null})
+	 * @param bytes
+	 *            event size
+	 */
+	public void add(String key, long bytes) {
+		int h = key.hashCode();
+		stripes[(h ^ (h >>> 16)) & mask].add(key, bytes);
+	}
+
+	/**
+	 * Returns the {@code k} keys with the highest byte counts, in descending
+	 * order
+	 */
+	public List<Entry> top(int k) {
+		List<Entry> all = new ArrayList<>();
+		for (Stripe stripe : stripes) {
+			stripe.collect(all);
+		}
+		Collections.sort(all, BY_BYTES_DESC);
+		return all.size() <= k ? all : new ArrayList<>(all.subList(0, k));
+	}
+
+	/**
+	 * Clears all counters
+	 */
+	public void reset() {
+		for (Stripe stripe : stripes) {
+			stripe.reset();
+		}
+	}
+
+	private static final Comparator<Entry> BY_BYTES_DESC = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			return Long.compare(e2.bytes, e1.bytes);
+		}
+	};
+
+	/**
+	 * A heavy hitter counter snapshot
+	 */
+	public static class Entry {
+		private final String key;
+		private final long events;
+		private final long bytes;
+		private final long error;
+
+		@ConstructorProperties({ "key", "events", "bytes", "error" })
+		public Entry(String key, long events, long bytes, long error) {
+			this.key = key;
+			this.events = events;
+			this.bytes = bytes;
+			this.error = error;
+		}
+
+		/**
+		 * The counted key
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * Number of events (may be over-estimated)
+		 */
+		public long getEvents() {
+			return events;
+		}
+
+		/**
+		 * Number of bytes (may be over-estimated by at most {@link #getError()})
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Maximum over-estimation of {@link #getBytes()}
+		 */
+		public long getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + events + " events/" + bytes + " bytes";
+		}
+	}
+
+	private static class Counter {
+		String key;
+		long events;
+		long bytes;
+		long error;
+	}
+
+	private static class Stripe {
+		private final Counter[] counters;
+		private final Map<String, Counter> index;
+		private int size;
+
+		Stripe(int capacity) {
+			counters = new Counter[capacity];
+			for (int i = 0; i < capacity; i++) {
+				counters[i] = new Counter();
+			}
+			index = new HashMap<>(capacity * 2);
+		}
+
+		synchronized void add(String key, long bytes) {
+			Counter counter = index.get(key);
+			if (counter == null) {
+				if (size < counters.length) {
+					counter = counters[size++];
+				} else {
+					// full: replace the smallest counter, that becomes the
+					// error
+					counter = counters[0];
+					for (int i = 1; i < counters.length; i++) {
+						if (counters[i].bytes < counter.bytes) {
+							counter = counters[i];
+						}
+					}
+					index.remove(counter.key);
+					counter.error = counter.bytes;
+				}
+				counter.key = key;
+				index.put(key, counter);
+			}
+			counter.events++;
+			counter.bytes += bytes;
+		}
+
+		synchronized void collect(List<Entry> entries) {
+			for (int i = 0; i < size; i++) {
+				Counter c = counters[i];
+				entries.add(new Entry(c.key, c.events, c.bytes, c.error));
+			}
+		}
+
+		synchronized void reset() {
+			for (int i = 0; i < size; i++) {
+				Counter c = counters[i];
+				c.key = null;
+				c.events = 0;
+				c.bytes = 0;
+				c.error = 0;
+			}
+			index.clear();
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,7 @@
+/**
+ * Logging utilities for <a href="https://logback.qos.ch/">Logback</a> (appenders, converters, ...)
+ *  
+ * @author pismy
+ * 
+ */
+package com.orange.common.logging.logback;
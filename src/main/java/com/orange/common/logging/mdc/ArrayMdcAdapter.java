@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.mdc;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+import org.slf4j.MDC;
+import org.slf4j.spi.MDCAdapter;
+
+/**
+ * An {@link MDCAdapter} that stores each thread's context in an
+ * {@link ArrayMdcMap}
+ * <p>
+ * Compared to Logback's adapter, that copies the whole {@link java.util.HashMap}
+ * on writes following a read and on each {@link #getCopyOfContextMap()}, this
+ * adapter makes {@link #getCopyOfContextMap()} and
+ * {@link #setContextMap(Map)} O(1) (snapshots are shared in copy-on-write
+ * mode), and {@link #put(String, String)} / {@link #remove(String)} cheap on
+ * small contexts. This especially benefits the context propagation wrappers
+ * from the {@code com.orange.common.logging.concurrent} package, that capture
+ * and restore the context for every task.
+ * <p>
+ * Logback remains fully compatible: logging events get their MDC properties
+ * through {@link #getCopyOfContextMap()}.
+ *
+ * <h2>installation</h2>
+ * SLF4J 1.7 binds its adapter statically, with no public setter: use
+ * {@link #install()} as early as possible at application startup (before any
+ * MDC value is set, as values held by the previous adapter are not
+ * transferred).
+ *
+ * @author pismy
+ *
+ */
+public class ArrayMdcAdapter implements MDCAdapter {
+	private final ThreadLocal<ArrayMdcMap> context = new ThreadLocal<>();
+
+	/**
+	 * Installs an {@link ArrayMdcAdapter} as the SLF4J {@link MDC} adapter
+	 * (unless already installed)
+	 *
+	 * @return the installed adapter
+	 * @throws IllegalStateException
+	 *             if the SLF4J adapter cannot be replaced
+	 */
+	public static synchronized ArrayMdcAdapter install() {
+		MDCAdapter current = MDC.getMDCAdapter();
+		if (current instanceof ArrayMdcAdapter) {
+			return (ArrayMdcAdapter) current;
+		}
+		ArrayMdcAdapter adapter = new ArrayMdcAdapter();
+		setMdcAdapter(adapter);
+		return adapter;
+	}
+
+	/**
+	 * Replaces the SLF4J {@link MDC} adapter
+	 * <p>
+	 * May be used to restore a previous adapter.
+	 *
+	 * @throws IllegalStateException
+	 *             if the SLF4J adapter cannot be replaced
+	 */
+	public static synchronized void setMdcAdapter(MDCAdapter adapter) {
+		try {
+			Field field = MDC.class.getDeclaredField("mdcAdapter");
+			field.setAccessible(true);
+			field.set(null, adapter);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not replace SLF4J MDC adapter", e);
+		}
+	}
+
+	private ArrayMdcMap getOrCreateContextMap() {
+		ArrayMdcMap map = context.get();
+		if (map == null) {
+			map = new ArrayMdcMap();
+			context.set(map);
+		}
+		return map;
+	}
+
+	@Override
+	public void put(String key, String val) {
+		if (key == null) {
+			throw new IllegalArgumentException("key cannot be null");
+		}
+		getOrCreateContextMap().set(key, val);
+	}
+
+	/**
+	 * Puts a lazily computed value into the current context (see
+	 * {@link LazyMdcValue})
+	 */
+	public void putLazy(String key, LazyMdcValue value) {
+		if (key == null) {
+			throw new IllegalArgumentException("key cannot be null");
+		}
+		getOrCreateContextMap().putLazy(key, value);
+	}
+
+	@Override
+	public String get(String key) {
+		ArrayMdcMap map = context.get();
+		return map == null ? null : map.get(key);
+	}
+
+	@Override
+	public void remove(String key) {
+		ArrayMdcMap map = context.get();
+		if (map != null) {
+			map.delete(key);
+		}
+	}
+
+	@Override
+	public void clear() {
+		ArrayMdcMap map = context.get();
+		if (map != null) {
+			map.clear();
+		}
+	}
+
+	/**
+	 * Returns an O(1) copy-on-write snapshot of the current context
+	 */
+	@Override
+	public Map<String, String> getCopyOfContextMap() {
+		ArrayMdcMap map = context.get();
+		return map == null ? null : map.snapshot();
+	}
+
+	/**
+	 * Returns a copy of the current context with the entries accepted by the
+	 * given filter (see {@link ArrayMdcMap#copy(ArrayMdcMap.EntryFilter)})
+	 *
+	 * @return the filtered copy, or {@code null} if there is no context
+	 */
+	public ArrayMdcMap getCopyOfContextMap(ArrayMdcMap.EntryFilter filter) {
+		ArrayMdcMap map = context.get();
+		return map == null ? null : map.copy(filter);
+	}
+
+	/**
+	 * Replaces the current context
+	 * <p>
+	 * O(1) when the given map is an {@link ArrayMdcMap} (for instance obtained
+	 * with {@link #getCopyOfContextMap()}).
+	 */
+	@Override
+	public void setContextMap(Map<String, String> contextMap) {
+		if (contextMap == null) {
+			clear();
+		} else if (contextMap instanceof ArrayMdcMap) {
+			context.set(((ArrayMdcMap) contextMap).snapshot());
+		} else {
+			context.set(new ArrayMdcMap(contextMap));
+		}
+	}
+}
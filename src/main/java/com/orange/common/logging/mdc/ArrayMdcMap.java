@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.mdc;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A small {@link Map} backed by parallel key and value arrays, with
+ * copy-on-write snapshots
+ * <p>
+ * Designed for MDC contexts, that hold a handful of entries: lookups are linear
+ * scans that compare keys by identity first (MDC keys are generally string
+ * literals, thus interned), and {@link #snapshot()} is O(1) as the snapshot
+ * shares its arrays with the original map until one of them is modified.
+ * <p>
+ * Values may be {@link #putLazy(String, LazyMdcValue) lazily computed}, on
+ * first read.
+ * <p>
+ * Not thread-safe: a map shall be modified by a single thread, but its
+ * snapshots can be safely handed over to other threads.
+ *
+ * @author pismy
+ *
+ */
+public class ArrayMdcMap extends AbstractMap<String, String> {
+	private static final int DEFAULT_CAPACITY = 8;
+
+	private String[] keys;
+	// String or LazyMdcValue
+	private Object[] values;
+	private int size;
+	// whether arrays are shared with another map (thus must be copied before
+	// any write)
+	private boolean shared;
+
+	/**
+	 * Filter of the entries copied by {@link ArrayMdcMap#copy(EntryFilter)}
+	 */
+	public interface EntryFilter {
+		/**
+		 * Whether the entry with the given key is copied
+		 */
+		boolean acceptKey(String key);
+
+		/**
+		 * Returns the value to copy for an accepted key (the given one, a
+		 * transformed one, or {@code null} to skip the entry)
+		 * <p>
+		 * Not called for lazy values that are not computed yet: they are
+		 * copied as is.
+		 */
+		String filterValue(String key, String value);
+	}
+
+	/**
+	 * Creates an empty map
+	 */
+	public ArrayMdcMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	private ArrayMdcMap(int capacity) {
+		keys = new String[capacity];
+		values = new Object[capacity];
+	}
+
+	/**
+	 * Creates a map with the entries of the given map
+	 */
+	public ArrayMdcMap(Map<String, String> map) {
+		int capacity = Math.max(DEFAULT_CAPACITY, map.size());
+		keys = new String[capacity];
+		values = new Object[capacity];
+		for (Entry<String, String> e : map.entrySet()) {
+			keys[size] = e.getKey();
+			values[size] = e.getValue();
+			size++;
+		}
+	}
+
+	private ArrayMdcMap(String[] keys, Object[] values, int size) {
+		this.keys = keys;
+		this.values = values;
+		this.size = size;
+		this.shared = true;
+	}
+
+	/**
+	 * Returns a copy of this map in O(1)
+	 * <p>
+	 * Both maps share their arrays until one of them is modified.
+	 */
+	public ArrayMdcMap snapshot() {
+		shared = true;
+		return new ArrayMdcMap(keys, values, size);
+	}
+
+	/**
+	 * Returns a copy of this map with the entries accepted by the given
+	 * filter, in a single pass (lazy values are not computed)
+	 */
+	public ArrayMdcMap copy(EntryFilter filter) {
+		ArrayMdcMap copy = new ArrayMdcMap(Math.max(DEFAULT_CAPACITY, size));
+		for (int i = 0; i < size; i++) {
+			String key = keys[i];
+			if (!filter.acceptKey(key)) {
+				continue;
+			}
+			Object raw = values[i];
+			if (raw instanceof LazyMdcValue && !((LazyMdcValue) raw).isComputed()) {
+				copy.keys[copy.size] = key;
+				copy.values[copy.size] = raw;
+				copy.size++;
+				continue;
+			}
+			String value = valueAt(i);
+			String filtered = filter.filterValue(key, value);
+			if (filtered != null) {
+				copy.keys[copy.size] = key;
+				// keep the original slot when unchanged (shares lazy values)
+				copy.values[copy.size] = filtered == value ? raw : filtered;
+				copy.size++;
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Whether both maps hold the very same entries (same key and value
+	 * objects, in the same order)
+	 * <p>
+	 * Cheap identity check, that never computes lazy values, but may return
+	 * {@code false} for equal maps.
+	 */
+	public boolean hasSameEntries(ArrayMdcMap other) {
+		if (other.size != size) {
+			return false;
+		}
+		if (other.keys == keys && other.values == values) {
+			// snapshots of one another
+			return true;
+		}
+		for (int i = 0; i < size; i++) {
+			if (keys[i] != other.keys[i] || values[i] != other.values[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(Object key) {
+		// identity first
+		for (int i = 0; i < size; i++) {
+			if (keys[i] == key) {
+				return i;
+			}
+		}
+		if (key != null) {
+			for (int i = 0; i < size; i++) {
+				if (key.equals(keys[i])) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private void ensureWritable(int capacity) {
+		if (shared || capacity > keys.length) {
+			int newCapacity = Math.max(keys.length, capacity);
+			if (newCapacity > keys.length) {
+				newCapacity = Math.max(newCapacity, keys.length * 2);
+			}
+			keys = Arrays.copyOf(keys, newCapacity);
+			values = Arrays.copyOf(values, newCapacity);
+			shared = false;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public String get(Object key) {
+		int idx = indexOf(key);
+		return idx < 0 ? null : valueAt(idx);
+	}
+
+	private String valueAt(int idx) {
+		Object value = values[idx];
+		return value instanceof LazyMdcValue ? ((LazyMdcValue) value).get() : (String) value;
+	}
+
+	@Override
+	public String put(String key, String value) {
+		int idx = indexOf(key);
+		String previous = idx < 0 ? null : valueAt(idx);
+		set(key, value);
+		return previous;
+	}
+
+	/**
+	 * Associates a lazily computed value with the given key
+	 * <p>
+	 * The value is computed when first read (with {@link #get(Object)} or
+	 * while iterating), and shared with the snapshots of this map.
+	 */
+	public void putLazy(String key, LazyMdcValue value) {
+		set(key, value);
+	}
+
+	/**
+	 * Sets a value (without computing the replaced one)
+	 */
+	void set(String key, Object value) {
+		int idx = indexOf(key);
+		if (idx >= 0) {
+			if (values[idx] != value) {
+				ensureWritable(size);
+				values[idx] = value;
+			}
+			return;
+		}
+		ensureWritable(size + 1);
+		keys[size] = key;
+		values[size] = value;
+		size++;
+	}
+
+	@Override
+	public String remove(Object key) {
+		int idx = indexOf(key);
+		if (idx < 0) {
+			return null;
+		}
+		String previous = valueAt(idx);
+		removeAt(idx);
+		return previous;
+	}
+
+	/**
+	 * Removes a value (without computing it)
+	 */
+	void delete(String key) {
+		int idx = indexOf(key);
+		if (idx >= 0) {
+			removeAt(idx);
+		}
+	}
+
+	private void removeAt(int idx) {
+		ensureWritable(size);
+		int moved = size - idx - 1;
+		if (moved > 0) {
+			System.arraycopy(keys, idx + 1, keys, idx, moved);
+			System.arraycopy(values, idx + 1, values, idx, moved);
+		}
+		size--;
+		keys[size] = null;
+		values[size] = null;
+	}
+
+	@Override
+	public void clear() {
+		if (shared) {
+			keys = new String[keys.length];
+			values = new Object[values.length];
+			shared = false;
+		} else {
+			Arrays.fill(keys, 0, size, null);
+			Arrays.fill(values, 0, size, null);
+		}
+		size = 0;
+	}
+
+	/**
+	 * Compares values by identity first, so that comparing a map with one of
+	 * its snapshots (as done to detect MDC leaks) does not compute lazy values
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (!(o instanceof ArrayMdcMap)) {
+			return super.equals(o);
+		}
+		ArrayMdcMap other = (ArrayMdcMap) o;
+		if (other.size != size) {
+			return false;
+		}
+		if (hasSameEntries(other)) {
+			return true;
+		}
+		for (int i = 0; i < size; i++) {
+			int idx = other.indexOf(keys[i]);
+			if (idx < 0) {
+				return false;
+			}
+			if (values[i] != other.values[idx]) {
+				String value = valueAt(i);
+				if (value == null ? other.valueAt(idx) != null : !value.equals(other.valueAt(idx))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return super.hashCode();
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private class EntryIterator implements Iterator<Entry<String, String>> {
+		private int next;
+		private int last = -1;
+
+		@Override
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		@Override
+		public Entry<String, String> next() {
+			if (next >= size) {
+				throw new NoSuchElementException();
+			}
+			last = next++;
+			return new SimpleImmutableEntry<>(keys[last], valueAt(last));
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			removeAt(last);
+			next = last;
+			last = -1;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.mdc;
+
+import org.slf4j.MDC;
+
+/**
+ * An {@link MDC} value that is computed at most once, and only when actually
+ * read (by an encoder or layout, or to be propagated to another thread or
+ * server)
+ * <p>
+ * Designed for tracking fields that are costly to compute (such as a hashed
+ * principal), while most requests never log a line that prints them.
+ * <p>
+ * Lazy values require the {@link ArrayMdcAdapter} to be installed; with any
+ * other adapter, {@link #put(String, LazyMdcValue)} computes the value
+ * immediately. The value may be computed by any thread (for instance by an
+ * asynchronous appender), thus {@link #compute()} shall be thread-safe.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * final String name = principal.getName();
+ * LazyMdcValue.put("userId", new LazyMdcValue() {
+ * 	protected String compute() {
+ * 		return sha1(name);
+ * 	}
+ * });
+ * </pre>
+ *
+ * @author pismy
+ *
+ */
+public abstract class LazyMdcValue {
+	private volatile String value;
+	private volatile boolean computed;
+
+	/**
+	 * Puts a lazily computed value into the current {@link MDC} context
+	 * <p>
+	 * The value is computed immediately if the {@link ArrayMdcAdapter} is not
+	 * installed.
+	 */
+	public static void put(String key, LazyMdcValue value) {
+		if (MDC.getMDCAdapter() instanceof ArrayMdcAdapter) {
+			((ArrayMdcAdapter) MDC.getMDCAdapter()).putLazy(key, value);
+		} else {
+			MDC.put(key, value.get());
+		}
+	}
+
+	/**
+	 * Computes the value (called at most once)
+	 */
+	protected abstract String compute();
+
+	/**
+	 * Returns the value, computing it on first call
+	 */
+	public final String get() {
+		if (!computed) {
+			synchronized (this) {
+				if (!computed) {
+					value = compute();
+					computed = true;
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Whether the value has been computed
+	 */
+	public boolean isComputed() {
+		return computed;
+	}
+
+	/**
+	 * Returns the value (computing it if needed)
+	 */
+	@Override
+	public String toString() {
+		return get();
+	}
+}
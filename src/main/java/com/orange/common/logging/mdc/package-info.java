@@ -0,0 +1,7 @@
+/**
+ * {@link org.slf4j.MDC} implementation utilities
+ *  
+ * @author pismy
+ * 
+ */
+package com.orange.common.logging.mdc;
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.reactor;
+
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.MDC;
+
+import com.orange.common.logging.concurrent.MdcPropagationPolicy;
+
+import reactor.core.CoreSubscriber;
+import reactor.core.Scannable;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Operators;
+import reactor.core.publisher.Signal;
+import reactor.util.context.Context;
+
+/**
+ * Bridges the {@link MDC} context (such as the {@code requestId},
+ * {@code sessionId} and {@code userId} set by the filters from the {@code web}
+ * package) to the Project Reactor subscriber {@link Context}
+ * <p>
+ * The {@link MDC} is captured once, where the reactive chain is subscribed
+ * (typically in the request thread), and stored as an immutable snapshot in
+ * the subscriber context:
+ *
+ * <pre>
+ * return service.findThings().subscriberContext(MdcContext.captureOnSubscribe());
+ * </pre>
+ *
+ * Unlike {@link #capture()}, which captures the {@link MDC} once, when the
+ * chain is assembled, {@link #captureOnSubscribe()} captures it on every
+ * subscription: a publisher that is assembled once (cached, or in a field) and
+ * subscribed from several requests sees the {@link MDC} of each subscriber.
+ *
+ * The snapshot can then be installed in the {@link MDC} in two ways:
+ * <ul>
+ * <li>only around the callbacks that actually log, with {@code doOnEach}
+ * (cheapest):
+ *
+ * <pre>
+ * flux.doOnEach(MdcContext.onError(e -&gt; LOGGER.error("fetch failed", e)))
+ * </pre>
+ *
+ * <li>around every signal of every operator of the chains that opt in (with
+ * {@link #captureOnSubscribe(MdcPropagationPolicy, boolean)}), with the
+ * {@link #installHook() operator hook}, for code that logs from within
+ * operators. The snapshot is looked up once per subscriber, and installed once
+ * per signal and thread whatever the number of operators.
+ * </ul>
+ * The operator hook has a cost, even for chains that don't opt in: every
+ * operator assembled once it is installed is lifted, which turns operator
+ * fusion off. Chains that opt in also save and restore the {@link MDC} on
+ * every signal (by reference with the {@code ArrayMdcAdapter}, by copy
+ * otherwise). Prefer {@code doOnEach} callbacks whenever possible.
+ *
+ * @author pismy
+ *
+ */
+public final class MdcContext {
+	/**
+	 * The subscriber {@link Context} key of the {@link MDC} snapshot
+	 */
+	public static final String KEY = MdcContext.class.getName() + ".snapshot";
+
+	/**
+	 * The hook name, and the subscriber {@link Context} key of chains that opt
+	 * in for the operator hook
+	 */
+	private static final String HOOK_KEY = MdcContext.class.getName() + ".hook";
+
+	private MdcContext() {
+	}
+
+	/**
+	 * Returns a subscriber context function that captures the {@link MDC}
+	 * context of the subscribing thread, on each subscription
+	 */
+	public static Function<Context, Context> captureOnSubscribe() {
+		return captureOnSubscribe(MdcPropagationPolicy.ALL);
+	}
+
+	/**
+	 * Returns a subscriber context function that captures the {@link MDC}
+	 * context of the subscribing thread according to the given policy, on
+	 * each subscription
+	 */
+	public static Function<Context, Context> captureOnSubscribe(MdcPropagationPolicy policy) {
+		return captureOnSubscribe(policy, false);
+	}
+
+	/**
+	 * Returns a subscriber context function that captures the {@link MDC}
+	 * context of the subscribing thread according to the given policy, on
+	 * each subscription
+	 *
+	 * @param operators
+	 *            whether the snapshot shall be installed around every signal
+	 *            of every operator of the chain, by the {@link #installHook()
+	 *            operator hook}
+	 */
+	public static Function<Context, Context> captureOnSubscribe(final MdcPropagationPolicy policy, final boolean operators) {
+		return new Function<Context, Context>() {
+			@Override
+			public Context apply(Context context) {
+				Context snapshot = capture(policy);
+				if (operators && snapshot.hasKey(KEY)) {
+					snapshot = snapshot.put(HOOK_KEY, Boolean.TRUE);
+				}
+				return context.putAll(snapshot);
+			}
+		};
+	}
+
+	/**
+	 * Captures the current {@link MDC} context
+	 * <p>
+	 * The capture happens when this method is called, typically when the
+	 * reactive chain is assembled: a publisher subscribed several times keeps
+	 * the same snapshot (see {@link #captureOnSubscribe()}).
+	 *
+	 * @return a subscriber {@link Context} holding the snapshot (empty if the
+	 *         {@link MDC} is)
+	 */
+	public static Context capture() {
+		return capture(MdcPropagationPolicy.ALL);
+	}
+
+	/**
+	 * Captures the current {@link MDC} context according to the given policy
+	 * (when this method is called, see {@link #captureOnSubscribe()})
+	 *
+	 * @return a subscriber {@link Context} holding the snapshot (empty if
+	 *         nothing was captured)
+	 */
+	public static Context capture(MdcPropagationPolicy policy) {
+		Map<String, String> snapshot = policy.capture();
+		return snapshot == null || snapshot.isEmpty() ? Context.empty() : Context.of(KEY, snapshot);
+	}
+
+	/**
+	 * Returns the {@link MDC} snapshot held by the given subscriber context
+	 * (may be {@code null})
+	 */
+	public static Map<String, String> get(Context context) {
+		return context.getOrDefault(KEY, null);
+	}
+
+	/**
+	 * Runs the given task with the {@link MDC} snapshot held by the given
+	 * subscriber context
+	 */
+	public static void run(Context context, Runnable task) {
+		Map<String, String> snapshot = get(context);
+		if (snapshot == null) {
+			task.run();
+			return;
+		}
+		Map<String, String> previous = MDC.getCopyOfContextMap();
+		MDC.setContextMap(snapshot);
+		try {
+			task.run();
+		} finally {
+			if (previous == null) {
+				MDC.clear();
+			} else {
+				MDC.setContextMap(previous);
+			}
+		}
+	}
+
+	/**
+	 * Returns a {@code doOnEach} callback that invokes the given consumer on
+	 * {@code onNext} signals, with the {@link MDC} installed
+	 */
+	public static <T> Consumer<Signal<T>> onNext(final Consumer<? super T> consumer) {
+		return new Consumer<Signal<T>>() {
+			@Override
+			public void accept(final Signal<T> signal) {
+				if (signal.isOnNext()) {
+					run(signal.getContext(), new Runnable() {
+						@Override
+						public void run() {
+							consumer.accept(signal.get());
+						}
+					});
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns a {@code doOnEach} callback that invokes the given consumer on
+	 * {@code onError} signals, with the {@link MDC} installed
+	 */
+	public static <T> Consumer<Signal<T>> onError(final Consumer<? super Throwable> consumer) {
+		return new Consumer<Signal<T>>() {
+			@Override
+			public void accept(final Signal<T> signal) {
+				if (signal.isOnError()) {
+					run(signal.getContext(), new Runnable() {
+						@Override
+						public void run() {
+							consumer.accept(signal.getThrowable());
+						}
+					});
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns a {@code doOnEach} callback that invokes the given task on the
+	 * {@code onComplete} signal, with the {@link MDC} installed
+	 */
+	public static <T> Consumer<Signal<T>> onComplete(final Runnable task) {
+		return new Consumer<Signal<T>>() {
+			@Override
+			public void accept(Signal<T> signal) {
+				if (signal.isOnComplete()) {
+					run(signal.getContext(), task);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Installs an operator hook that installs the {@link MDC} snapshot around
+	 * every signal, for chains that opt in (see
+	 * {@link #captureOnSubscribe(MdcPropagationPolicy, boolean)})
+	 * <p>
+	 * Subscribers of other chains are not decorated. Only applies to chains
+	 * assembled after the hook is installed, and turns operator fusion off for
+	 * all of them (see class doc).
+	 */
+	public static void installHook() {
+		Hooks.onEachOperator(HOOK_KEY, Operators.lift(new BiFunction<Scannable, CoreSubscriber<? super Object>, CoreSubscriber<? super Object>>() {
+			@Override
+			public CoreSubscriber<? super Object> apply(Scannable scannable, CoreSubscriber<? super Object> subscriber) {
+				Context context = subscriber.currentContext();
+				if (!context.hasKey(HOOK_KEY)) {
+					return subscriber;
+				}
+				Map<String, String> snapshot = get(context);
+				return snapshot == null ? subscriber : new MdcSubscriber<>(subscriber, snapshot);
+			}
+		}));
+	}
+
+	/**
+	 * Removes the operator hook installed by {@link #installHook()}
+	 */
+	public static void uninstallHook() {
+		Hooks.resetOnEachOperator(HOOK_KEY);
+	}
+}
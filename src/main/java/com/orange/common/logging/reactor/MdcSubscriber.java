@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.reactor;
+
+import java.util.Map;
+
+import org.reactivestreams.Subscription;
+import org.slf4j.MDC;
+
+import reactor.core.CoreSubscriber;
+import reactor.util.context.Context;
+
+/**
+ * A {@link CoreSubscriber} that installs the {@link MDC} snapshot held by its
+ * subscriber context around each signal
+ * <p>
+ * The snapshot is looked up once, when the subscriber is created. Operators of
+ * a chain running on the same thread share the snapshot: only the outermost
+ * one actually installs (and restores) the {@link MDC}. Worker threads usually
+ * have no {@link MDC}: it is then simply cleared after the signal.
+ *
+ * @author pismy
+ *
+ */
+class MdcSubscriber<T> implements CoreSubscriber<T> {
+	// snapshot currently installed by an MdcSubscriber on this thread
+	private static final ThreadLocal<Map<String, String>> INSTALLED = new ThreadLocal<>();
+
+	private final CoreSubscriber<? super T> actual;
+	private final Map<String, String> snapshot;
+
+	MdcSubscriber(CoreSubscriber<? super T> actual, Map<String, String> snapshot) {
+		this.actual = actual;
+		this.snapshot = snapshot;
+	}
+
+	@Override
+	public Context currentContext() {
+		return actual.currentContext();
+	}
+
+	@Override
+	public void onSubscribe(Subscription s) {
+		actual.onSubscribe(s);
+	}
+
+	@Override
+	public void onNext(T t) {
+		Map<String, String> outer = INSTALLED.get();
+		if (outer == snapshot) {
+			actual.onNext(t);
+			return;
+		}
+		Map<String, String> previous = enter();
+		try {
+			actual.onNext(t);
+		} finally {
+			exit(outer, previous);
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		Map<String, String> outer = INSTALLED.get();
+		if (outer == snapshot) {
+			actual.onError(t);
+			return;
+		}
+		Map<String, String> previous = enter();
+		try {
+			actual.onError(t);
+		} finally {
+			exit(outer, previous);
+		}
+	}
+
+	@Override
+	public void onComplete() {
+		Map<String, String> outer = INSTALLED.get();
+		if (outer == snapshot) {
+			actual.onComplete();
+			return;
+		}
+		Map<String, String> previous = enter();
+		try {
+			actual.onComplete();
+		} finally {
+			exit(outer, previous);
+		}
+	}
+
+	private Map<String, String> enter() {
+		// a snapshot by reference with the ArrayMdcAdapter, null if empty
+		Map<String, String> previous = MDC.getCopyOfContextMap();
+		MDC.setContextMap(snapshot);
+		INSTALLED.set(snapshot);
+		return previous;
+	}
+
+	private static void exit(Map<String, String> outer, Map<String, String> previous) {
+		if (outer == null) {
+			INSTALLED.remove();
+		} else {
+			INSTALLED.set(outer);
+		}
+		if (previous == null) {
+			MDC.clear();
+		} else {
+			MDC.setContextMap(previous);
+		}
+	}
+}
@@ -0,0 +1,7 @@
+/**
+ * {@link org.slf4j.MDC} propagation for <a href="https://projectreactor.io/">Project Reactor</a> (requires reactor-core 3.2+)
+ *  
+ * @author pismy
+ * 
+ */
+package com.orange.common.logging.reactor;
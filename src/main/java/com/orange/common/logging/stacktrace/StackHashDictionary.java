@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.stacktrace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A persistent dictionary of rendered stack traces, indexed by their
+ * <a href="https://github.com/logstash/logstash-logback-encoder/blob/master/stack-hash.md">stack
+ * hash</a>
+ * <p>
+ * Stack traces are stored in an append-only memory-mapped data file
+ * ({@code stacks.dat}), and their offsets in an append-only memory-mapped
+ * index file ({@code stacks.idx}), both located in the dictionary directory.
+ * The index is loaded in memory when the dictionary is opened, so that
+ * {@link #contains(String)} is a simple lookup.
+ * <p>
+ * A writable dictionary is safe for concurrent writers within one JVM (use
+ * {@link #open(File)} to share a single, reference counted, instance per
+ * directory), and is locked
+ * against other processes. Read-only dictionaries (see {@link #openReadOnly(File)})
+ * can be opened at any time, for instance by the
+ * {@link StackHashDictionaryTool offline tool}.
+ *
+ * <h2>file formats</h2>
+ * Both files start with a 16 bytes header: magic number (int), format version
+ * (int) and committed length (long: data end offset or number of index
+ * entries). Then:
+ * <ul>
+ * <li>data records: hash (int), length (int), UTF-8 rendered stack trace,
+ * <li>index entries: hash (int), data record offset (long).
+ * </ul>
+ *
+ * @author pismy
+ *
+ */
+public class StackHashDictionary implements Closeable {
+	static final String DATA_FILE = "stacks.dat";
+	static final String INDEX_FILE = "stacks.idx";
+
+	private static final int DATA_MAGIC = 0x53484431; // SHD1
+	private static final int INDEX_MAGIC = 0x53484931; // SHI1
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int INDEX_ENTRY_SIZE = 12;
+	private static final int INITIAL_DATA_SIZE = 1 << 20;
+	private static final int INITIAL_INDEX_SIZE = HEADER_SIZE + 1024 * INDEX_ENTRY_SIZE;
+
+	private static final ConcurrentMap<File, StackHashDictionary> OPENED = new ConcurrentHashMap<>();
+
+	private final File directory;
+	private final boolean readOnly;
+	private final FileChannel dataChannel;
+	private final FileChannel indexChannel;
+	private final FileLock lock;
+	private final ConcurrentMap<Integer, Long> offsets = new ConcurrentHashMap<>();
+	private volatile MappedByteBuffer data;
+	private MappedByteBuffer index;
+	private long dataEnd;
+	private long indexCount;
+	// number of open() callers sharing this instance (guarded by OPENED)
+	private int references;
+
+	/**
+	 * Returns the (shared) writable dictionary stored in the given directory,
+	 * opening it if necessary
+	 * <p>
+	 * Shared instances are reference counted: each caller shall
+	 * {@link #close()} it, and the files are actually closed by the last one.
+	 */
+	public static StackHashDictionary open(File directory) throws IOException {
+		File key = directory.getCanonicalFile();
+		synchronized (OPENED) {
+			StackHashDictionary dictionary = OPENED.get(key);
+			if (dictionary == null) {
+				dictionary = new StackHashDictionary(key, false);
+				OPENED.put(key, dictionary);
+			}
+			dictionary.references++;
+			return dictionary;
+		}
+	}
+
+	/**
+	 * Opens the dictionary stored in the given directory in read-only mode
+	 * <p>
+	 * The dictionary only contains entries committed at the time it is opened.
+	 */
+	public static StackHashDictionary openReadOnly(File directory) throws IOException {
+		return new StackHashDictionary(directory, true);
+	}
+
+	private StackHashDictionary(File directory, boolean readOnly) throws IOException {
+		this.directory = directory;
+		this.readOnly = readOnly;
+		if (readOnly) {
+			dataChannel = FileChannel.open(new File(directory, DATA_FILE).toPath(), StandardOpenOption.READ);
+			indexChannel = FileChannel.open(new File(directory, INDEX_FILE).toPath(), StandardOpenOption.READ);
+			lock = null;
+			data = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, dataChannel.size());
+			index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+			checkHeader(data, DATA_MAGIC, DATA_FILE);
+			checkHeader(index, INDEX_MAGIC, INDEX_FILE);
+		} else {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create stack hash dictionary directory " + directory);
+			}
+			dataChannel = FileChannel.open(new File(directory, DATA_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			indexChannel = FileChannel.open(new File(directory, INDEX_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				lock = indexChannel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				throw new IOException("Stack hash dictionary " + directory + " is already opened", e);
+			}
+			if (lock == null) {
+				dataChannel.close();
+				indexChannel.close();
+				throw new IOException("Stack hash dictionary " + directory + " is locked by another process");
+			}
+			boolean created = dataChannel.size() == 0;
+			data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(dataChannel.size(), INITIAL_DATA_SIZE));
+			index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(indexChannel.size(), INITIAL_INDEX_SIZE));
+			if (created) {
+				initHeader(data, DATA_MAGIC, HEADER_SIZE);
+				initHeader(index, INDEX_MAGIC, 0);
+			} else {
+				checkHeader(data, DATA_MAGIC, DATA_FILE);
+				checkHeader(index, INDEX_MAGIC, INDEX_FILE);
+			}
+		}
+		// load index
+		dataEnd = data.getLong(8);
+		long count = index.getLong(8);
+		for (indexCount = 0; indexCount < count; indexCount++) {
+			int pos = (int) (HEADER_SIZE + indexCount * INDEX_ENTRY_SIZE);
+			long offset = index.getLong(pos + 4);
+			if (offset >= dataEnd) {
+				// uncommitted record (crash)
+				break;
+			}
+			offsets.put(index.getInt(pos), offset);
+		}
+	}
+
+	private static void initHeader(ByteBuffer buffer, int magic, long committed) {
+		buffer.putInt(0, magic);
+		buffer.putInt(4, VERSION);
+		buffer.putLong(8, committed);
+	}
+
+	private void checkHeader(ByteBuffer buffer, int magic, String file) throws IOException {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != magic || buffer.getInt(4) != VERSION) {
+			throw new IOException("Invalid stack hash dictionary file " + new File(directory, file));
+		}
+	}
+
+	/**
+	 * Parses a hexadecimal stack hash (as produced by
+	 * {@code net.logstash.logback.stacktrace.StackHasher})
+	 */
+	static int parseHash(String hexHash) {
+		return (int) Long.parseLong(hexHash, 16);
+	}
+
+	static String toHex(int hash) {
+		String hex = Integer.toHexString(hash);
+		return hex.length() >= 8 ? hex : "00000000".substring(hex.length()) + hex;
+	}
+
+	/**
+	 * The dictionary directory
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Number of stack traces in the dictionary
+	 */
+	public int size() {
+		return offsets.size();
+	}
+
+	/**
+	 * Hexadecimal hashes of all stack traces in the dictionary
+	 */
+	public Set<String> hashes() {
+		Set<String> hashes = new TreeSet<>();
+		for (Integer hash : offsets.keySet()) {
+			hashes.add(toHex(hash));
+		}
+		return Collections.unmodifiableSet(hashes);
+	}
+
+	/**
+	 * Whether the dictionary holds the stack trace with the given hash
+	 */
+	public boolean contains(String hexHash) {
+		return offsets.containsKey(parseHash(hexHash));
+	}
+
+	/**
+	 * Returns the stack trace with the given hash, or {@code null}
+	 */
+	public String get(String hexHash) {
+		Long offset = offsets.get(parseHash(hexHash));
+		if (offset == null) {
+			return null;
+		}
+		ByteBuffer buffer = data.duplicate();
+		int length = buffer.getInt((int) (offset + 4));
+		byte[] bytes = new byte[length];
+		buffer.position((int) (offset + 8));
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Adds a stack trace to the dictionary, unless already present
+	 *
+	 * @return {@code true} if the stack trace was added, {@code false} if
+	 *         already present
+	 */
+	public boolean put(String hexHash, String stackTrace) throws IOException {
+		int hash = parseHash(hexHash);
+		if (offsets.containsKey(hash)) {
+			return false;
+		}
+		if (readOnly) {
+			throw new IOException("Stack hash dictionary " + directory + " is read-only");
+		}
+		byte[] bytes = stackTrace.getBytes(StandardCharsets.UTF_8);
+		synchronized (this) {
+			if (offsets.containsKey(hash)) {
+				return false;
+			}
+			// 1: append data record
+			long offset = dataEnd;
+			long newEnd = offset + 8 + bytes.length;
+			if (newEnd > Integer.MAX_VALUE) {
+				throw new IOException("Stack hash dictionary " + directory + " is full");
+			}
+			if (newEnd > data.capacity()) {
+				data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(Integer.MAX_VALUE, Math.max(newEnd, 2L * data.capacity())));
+			}
+			MappedByteBuffer buffer = data;
+			buffer.putInt((int) offset, hash);
+			buffer.putInt((int) offset + 4, bytes.length);
+			ByteBuffer dst = buffer.duplicate();
+			dst.position((int) offset + 8);
+			dst.put(bytes);
+			// 2: append index entry
+			long pos = HEADER_SIZE + indexCount * INDEX_ENTRY_SIZE;
+			if (pos + INDEX_ENTRY_SIZE > index.capacity()) {
+				index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * index.capacity());
+			}
+			index.putInt((int) pos, hash);
+			index.putLong((int) pos + 4, offset);
+			// 3: commit
+			dataEnd = newEnd;
+			buffer.putLong(8, dataEnd);
+			indexCount++;
+			index.putLong(8, indexCount);
+			offsets.put(hash, offset);
+		}
+		return true;
+	}
+
+	/**
+	 * Flushes pending changes to disk
+	 */
+	public synchronized void flush() {
+		if (!readOnly) {
+			data.force();
+			index.force();
+		}
+	}
+
+	/**
+	 * Closes the dictionary (a shared writable dictionary is only closed when
+	 * all callers of {@link #open(File)} closed it)
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!readOnly) {
+			synchronized (OPENED) {
+				if (references == 0 || --references > 0) {
+					// already closed, or still used by other callers
+					return;
+				}
+				OPENED.remove(directory, this);
+			}
+			flush();
+			lock.release();
+		}
+		dataChannel.close();
+		indexChannel.close();
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.stacktrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import net.logstash.logback.stacktrace.ShortenedThrowableConverter;
+import net.logstash.logback.stacktrace.StackElementFilter;
+import net.logstash.logback.stacktrace.StackHasher;
+
+/**
+ * A {@link ShortenedThrowableConverter} that renders each distinct stack trace
+ * only once, and stores it in a persistent {@link StackHashDictionary}
+ * <p>
+ * The first occurrence of a stack trace (identified by its stack hash, computed
+ * the same way as the {@code StackHashJsonProvider}) is rendered in full, and
+ * stored in the dictionary. Later occurrences - even after a restart - are
+ * rendered as a single line with the hash, the exception class and message,
+ * and a reference to the dictionary:
+ *
+ * <pre>
+ * &lt;#07e70d1e&gt; com.xyz.MyApp$MyClient$MyClientException: An error occurred while getting the things [stack trace in /var/log/myapp/stacks]
+ * </pre>
+ *
+ * Stack traces can then be resolved offline with {@link StackHashDictionaryTool}.
+ * <p>
+ * The dictionary directory is set with the {@code dictionary} property, or the
+ * {@code slf4j.tools.stack_dictionary.dir} Java property (required when used
+ * as a conversion word in a pattern layout).
+ *
+ * <h2>logback.xml configuration example</h2>
+ *
+ * <pre style="font-size: medium">
+ * &lt;encoder class="net.logstash.logback.encoder.LogstashEncoder"&gt;
+ *   &lt;throwableConverter class="com.orange.common.logging.stacktrace.StackHashDictionaryConverter"&gt;
+ *     &lt;dictionary&gt;/var/log/myapp/stacks&lt;/dictionary&gt;
+ *     &lt;inlineHash&gt;true&lt;/inlineHash&gt;
+ *     &lt;exclusions&gt;${STE_EXCLUSIONS}&lt;/exclusions&gt;
+ *   &lt;/throwableConverter&gt;
+ * &lt;/encoder&gt;
+ * </pre>
+ *
+ * @author pismy
+ *
+ */
+public class StackHashDictionaryConverter extends ShortenedThrowableConverter {
+	private String dictionaryDir = System.getProperty("slf4j.tools.stack_dictionary.dir");
+	private StackHashDictionary dictionary;
+	private StackHasher hasher;
+
+	@Override
+	public void start() {
+		super.start();
+		List<Pattern> patterns = new ArrayList<>();
+		for (String exclude : getExcludes()) {
+			patterns.add(Pattern.compile(exclude));
+		}
+		hasher = new StackHasher(StackElementFilter.byPattern(patterns));
+		if (dictionaryDir == null) {
+			addError("No stack hash dictionary directory set: stack traces will be rendered in full");
+		} else {
+			try {
+				dictionary = StackHashDictionary.open(new File(dictionaryDir));
+			} catch (IOException e) {
+				addError("Could not open stack hash dictionary " + dictionaryDir + ": stack traces will be rendered in full", e);
+			}
+		}
+	}
+
+	@Override
+	public void stop() {
+		StackHashDictionary d = dictionary;
+		if (d != null) {
+			dictionary = null;
+			try {
+				// flushes, and releases the files if not shared
+				d.close();
+			} catch (IOException e) {
+				addError("Could not close stack hash dictionary " + dictionaryDir, e);
+			}
+		}
+		super.stop();
+	}
+
+	@Override
+	public String convert(ILoggingEvent event) {
+		IThrowableProxy proxy = event.getThrowableProxy();
+		if (dictionary == null || !(proxy instanceof ThrowableProxy)) {
+			return super.convert(event);
+		}
+		String hash = hasher.hexHash(((ThrowableProxy) proxy).getThrowable());
+		if (dictionary.contains(hash)) {
+			// already known: only log a reference
+			StringBuilder sb = new StringBuilder(128);
+			sb.append("<#").append(hash).append("> ").append(proxy.getClassName());
+			if (proxy.getMessage() != null) {
+				sb.append(": ").append(proxy.getMessage());
+			}
+			sb.append(" [stack trace in ").append(dictionary.getDirectory()).append("]");
+			return sb.toString();
+		}
+		String rendered = super.convert(event);
+		try {
+			dictionary.put(hash, rendered);
+		} catch (IOException e) {
+			addError("Could not store stack trace " + hash + " in dictionary", e);
+		}
+		return rendered;
+	}
+
+	/**
+	 * The stack hash dictionary directory
+	 * <p>
+	 * Default: value of the {@code slf4j.tools.stack_dictionary.dir} Java
+	 * property
+	 */
+	public String getDictionary() {
+		return dictionaryDir;
+	}
+
+	/**
+	 * The stack hash dictionary directory
+	 * <p>
+	 * Default: value of the {@code slf4j.tools.stack_dictionary.dir} Java
+	 * property
+	 */
+	public void setDictionary(String dictionaryDir) {
+		this.dictionaryDir = dictionaryDir;
+	}
+}
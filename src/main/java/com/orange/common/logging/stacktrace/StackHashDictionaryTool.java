@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.stacktrace;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Command line tool that resolves stack hashes from a
+ * {@link StackHashDictionary}
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java -cp orange-mathoms-logging.jar com.orange.common.logging.stacktrace.StackHashDictionaryTool &lt;dictionary dir&gt; [&lt;hash&gt;...]
+ * </pre>
+ *
+ * Without hash, lists all hashes in the dictionary. Otherwise prints the stack
+ * trace of each hash ({@code <#...>} hash notation is accepted).
+ *
+ * @author pismy
+ *
+ */
+public class StackHashDictionaryTool {
+	private StackHashDictionaryTool() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: " + StackHashDictionaryTool.class.getName() + " <dictionary dir> [<hash>...]");
+			System.exit(2);
+		}
+		boolean allFound = true;
+		try (StackHashDictionary dictionary = StackHashDictionary.openReadOnly(new File(args[0]))) {
+			if (args.length == 1) {
+				for (String hash : dictionary.hashes()) {
+					System.out.println(hash);
+				}
+				System.err.println(dictionary.size() + " stack trace(s)");
+			}
+			for (int i = 1; i < args.length; i++) {
+				String hash = args[i].replace("<", "").replace("#", "").replace(">", "").trim();
+				String stackTrace = dictionary.get(hash);
+				if (stackTrace == null) {
+					System.err.println("<#" + hash + "> not found");
+					allFound = false;
+				} else {
+					System.out.println(stackTrace);
+				}
+			}
+		}
+		if (!allFound) {
+			System.exit(1);
+		}
+	}
+}
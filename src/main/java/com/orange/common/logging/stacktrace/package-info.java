@@ -0,0 +1,7 @@
+/**
+ * Stack traces related utilities
+ *  
+ * @author pismy
+ * 
+ */
+package com.orange.common.logging.stacktrace;
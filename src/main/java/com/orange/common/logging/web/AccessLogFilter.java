@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2017 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'Apache-2.0'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'http://www.apache.org/licenses/LICENSE-2.0'.
+ */
+package com.orange.common.logging.web;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * A {@link Filter servlet filter} that logs one access log line per request,
+ * including the {@link MDC} fields set by {@link RequestIdFilter},
+ * {@link SessionIdFilter} and {@link PrincipalFilter}
+ * <p>
+ * Requires SLF4J as the logging facade API.
+ * <p>
+ * The line is logged at {@code INFO} level to a dedicated logger, in
+ * <a href="https://brandur.org/logfmt">logfmt</a> format:
+ *
+ * <pre>
+ * method=GET uri=/users/{id} status=200 bytes=1532 duration_us=4310 requestId=15f1c5fbd0c sessionId=node01x9z userId=john.doe
+ * </pre>
+ *
+ * The URI is the URI template (such as set by Spring MVC) if available, else
+ * the request URI. The line is formatted into a reusable thread-local buffer,
+ * so that the only allocation is the resulting message.
+ * <p>
+ * <b>Warning</b>: this filter shall be mapped <b>after</b> the tracking filters, so
+ * that their MDC fields are still set when the chain completes.
+ *
+ * <h2>configuration</h2>
+ *
+ * <table border=1>
+ * <tr>
+ * <th>parameter</th>
+ * <th>Java property</th>
+ * <th>filter init param</th>
+ * <th>default value</th>
+ * </tr>
+ * <tr>
+ * <td>logger name</td>
+ * <td>{@code slf4j.tools.access_log.logger}</td>
+ * <td>{@code logger}</td>
+ * <td>{@code access}</td>
+ * </tr>
+ * <tr>
+ * <td>MDC fields (comma separated)</td>
+ * <td>{@code slf4j.tools.access_log.mdc}</td>
+ * <td>{@code mdc}</td>
+ * <td>{@code requestId,sessionId,userId}</td>
+ * </tr>
+ * <tr>
+ * <td>URI template request attribute name</td>
+ * <td>{@code slf4j.tools.access_log.uri_template_attribute}</td>
+ * <td>{@code uri_template_attribute}</td>
+ * <td>{@code org.springframework.web.servlet.HandlerMapping.bestMatchingPattern}</td>
+ * </tr>
+ * <tr>
+ * <td>count response bytes</td>
+ * <td>{@code slf4j.tools.access_log.count_bytes}</td>
+ * <td>{@code count_bytes}</td>
+ * <td>{@code false}</td>
+ * </tr>
+ * </table>
+ * <p>
+ * When bytes are not counted, the {@code Content-Length} response header is
+ * used (if set).
+ *
+ * @author pismy
+ */
+public class AccessLogFilter implements Filter {
+	private static final int MAX_RETAINED_CAPACITY = 4096;
+
+	private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	private String loggerName;
+	private String[] mdcFields;
+	private String uriTemplateAttribute;
+	private boolean countBytes;
+	private Logger logger;
+
+	/**
+	 * Default constructor
+	 * <p>
+	 * Retrieves configuration from Java properties (see class doc)
+	 */
+	public AccessLogFilter() {
+		loggerName = System.getProperty("slf4j.tools.access_log.logger", "access");
+		setMdcFields(System.getProperty("slf4j.tools.access_log.mdc", "requestId,sessionId,userId"));
+		uriTemplateAttribute = System.getProperty("slf4j.tools.access_log.uri_template_attribute",
+				"org.springframework.web.servlet.HandlerMapping.bestMatchingPattern");
+		countBytes = Boolean.parseBoolean(System.getProperty("slf4j.tools.access_log.count_bytes", "false"));
+	}
+
+	/**
+	 * Filter init method
+	 * <p>
+	 * Loads configuration from filter configuration
+	 */
+	public void init(FilterConfig filterConfig) throws ServletException {
+		loggerName = getConfig(filterConfig, "logger", loggerName);
+		String mdc = filterConfig.getInitParameter("mdc");
+		if (mdc != null) {
+			setMdcFields(mdc);
+		}
+		uriTemplateAttribute = getConfig(filterConfig, "uri_template_attribute", uriTemplateAttribute);
+		countBytes = Boolean.parseBoolean(getConfig(filterConfig, "count_bytes", String.valueOf(countBytes)));
+	}
+
+	private String getConfig(FilterConfig filterConfig, String param, String defaultValue) {
+		String valueFromConfig = filterConfig.getInitParameter(param);
+		return valueFromConfig == null ? defaultValue : valueFromConfig;
+	}
+
+	/**
+	 * The name of the logger access lines are logged to
+	 * <p>
+	 * Default: {@code access}
+	 */
+	public String getLoggerName() {
+		return loggerName;
+	}
+
+	/**
+	 * The name of the logger access lines are logged to
+	 * <p>
+	 * Default: {@code access}
+	 */
+	public void setLoggerName(String loggerName) {
+		this.loggerName = loggerName;
+		logger = null;
+	}
+
+	/**
+	 * The MDC fields added to the access line (comma separated)
+	 * <p>
+	 * Default: {@code requestId,sessionId,userId}
+	 */
+	public String getMdcFields() {
+		StringBuilder sb = new StringBuilder();
+		for (String field : mdcFields) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(field);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The MDC fields added to the access line (comma separated)
+	 * <p>
+	 * Default: {@code requestId,sessionId,userId}
+	 */
+	public void setMdcFields(String mdcFields) {
+		String[] fields = mdcFields.split(",");
+		int count = 0;
+		for (String field : fields) {
+			if (!field.trim().isEmpty()) {
+				fields[count++] = field.trim();
+			}
+		}
+		String[] trimmed = new String[count];
+		System.arraycopy(fields, 0, trimmed, 0, count);
+		this.mdcFields = trimmed;
+	}
+
+	/**
+	 * The request attribute that holds the URI template
+	 * <p>
+	 * Default: {@code org.springframework.web.servlet.HandlerMapping.bestMatchingPattern}
+	 */
+	public String getUriTemplateAttribute() {
+		return uriTemplateAttribute;
+	}
+
+	/**
+	 * The request attribute that holds the URI template
+	 * <p>
+	 * Default: {@code org.springframework.web.servlet.HandlerMapping.bestMatchingPattern}
+	 */
+	public void setUriTemplateAttribute(String uriTemplateAttribute) {
+		this.uriTemplateAttribute = uriTemplateAttribute;
+	}
+
+	/**
+	 * Whether response bytes shall be counted (requires wrapping the
+	 * response)
+	 * <p>
+	 * Default: {@code false}
+	 */
+	public boolean isCountBytes() {
+		return countBytes;
+	}
+
+	/**
+	 * Whether response bytes shall be counted (requires wrapping the
+	 * response)
+	 * <p>
+	 * Default: {@code false}
+	 */
+	public void setCountBytes(boolean countBytes) {
+		this.countBytes = countBytes;
+	}
+
+	private Logger getLogger() {
+		Logger l = logger;
+		if (l == null) {
+			logger = l = LoggerFactory.getLogger(loggerName);
+		}
+		return l;
+	}
+
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		final Logger l = getLogger();
+		if (!l.isInfoEnabled() || !(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		final long start = System.nanoTime();
+		final HttpServletRequest httpRequest = (HttpServletRequest) request;
+		final CountingResponse counting = countBytes ? new CountingResponse((HttpServletResponse) response) : null;
+		final HttpServletResponse httpResponse = counting != null ? counting : (HttpServletResponse) response;
+		boolean async = false;
+		try {
+			chain.doFilter(request, httpResponse);
+			if (request.isAsyncStarted()) {
+				// log upon completion, with the current MDC values
+				async = true;
+				final String[] mdcValues = new String[mdcFields.length];
+				for (int i = 0; i < mdcFields.length; i++) {
+					mdcValues[i] = MDC.get(mdcFields[i]);
+				}
+				request.getAsyncContext().addListener(new AsyncListener() {
+					@Override
+					public void onComplete(AsyncEvent event) {
+						log(l, httpRequest, httpResponse, counting, start, mdcValues);
+					}
+
+					@Override
+					public void onTimeout(AsyncEvent event) {
+					}
+
+					@Override
+					public void onError(AsyncEvent event) {
+					}
+
+					@Override
+					public void onStartAsync(AsyncEvent event) {
+					}
+				});
+			}
+		} finally {
+			if (!async) {
+				log(l, httpRequest, httpResponse, counting, start, null);
+			}
+		}
+	}
+
+	private void log(Logger l, HttpServletRequest request, HttpServletResponse response, CountingResponse counting, long start, String[] mdcValues) {
+		long duration = (System.nanoTime() - start) / 1000;
+		StringBuilder sb = BUFFER.get();
+		sb.setLength(0);
+		sb.append("method=");
+		appendValue(sb, request.getMethod());
+		sb.append(" uri=");
+		Object uriTemplate = uriTemplateAttribute == null ? null : request.getAttribute(uriTemplateAttribute);
+		appendValue(sb, uriTemplate instanceof String ? (String) uriTemplate : request.getRequestURI());
+		sb.append(" status=").append(response.getStatus());
+		sb.append(" bytes=");
+		if (counting != null) {
+			sb.append(counting.count);
+		} else {
+			appendValue(sb, response.getHeader("Content-Length"));
+		}
+		sb.append(" duration_us=").append(duration);
+		for (int i = 0; i < mdcFields.length; i++) {
+			String value = mdcValues == null ? MDC.get(mdcFields[i]) : mdcValues[i];
+			if (value != null) {
+				sb.append(' ').append(mdcFields[i]).append('=');
+				appendValue(sb, value);
+			}
+		}
+		l.info(sb.toString());
+		if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+			// don't retain huge buffers
+			BUFFER.remove();
+		}
+	}
+
+	/**
+	 * Appends a logfmt value (quoted if needed)
+	 */
+	private static void appendValue(StringBuilder sb, String value) {
+		if (value == null || value.isEmpty()) {
+			sb.append('-');
+			return;
+		}
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c <= ' ' || c == '"' || c == '=' || c == '\\';
+		}
+		if (!quote) {
+			sb.append(value);
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\');
+			}
+			sb.append(c < ' ' ? ' ' : c);
+		}
+		sb.append('"');
+	}
+
+	public void destroy() {
+	}
+
+	/**
+	 * Response wrapper that counts bytes written to the body
+	 * <p>
+	 * Both the output stream and the writer wrap the container's ones, without
+	 * any additional buffer: the container flushes them upon completion
+	 * (including for asynchronous requests), and bytes are counted as they are
+	 * written.
+	 */
+	private static class CountingResponse extends HttpServletResponseWrapper {
+		private long count;
+		private ServletOutputStream stream;
+		private PrintWriter writer;
+
+		CountingResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (writer != null) {
+				throw new IllegalStateException("getWriter() has already been called on this response");
+			}
+			if (stream == null) {
+				final ServletOutputStream wrapped = super.getOutputStream();
+				stream = new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						wrapped.write(b);
+						count++;
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						wrapped.write(b, off, len);
+						count += len;
+					}
+
+					@Override
+					public void flush() throws IOException {
+						wrapped.flush();
+					}
+
+					@Override
+					public void close() throws IOException {
+						wrapped.close();
+					}
+
+					@Override
+					public boolean isReady() {
+						return wrapped.isReady();
+					}
+
+					@Override
+					public void setWriteListener(WriteListener writeListener) {
+						wrapped.setWriteListener(writeListener);
+					}
+				};
+			}
+			return stream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (stream != null) {
+				throw new IllegalStateException("getOutputStream() has already been called on this response");
+			}
+			if (writer == null) {
+				final PrintWriter wrapped = super.getWriter();
+				final Charset charset = Charset.forName(getCharacterEncoding());
+				writer = new PrintWriter(new CountingWriter(wrapped, charset)) {
+					@Override
+					public boolean checkError() {
+						return super.checkError() || wrapped.checkError();
+					}
+				};
+			}
+			return writer;
+		}
+
+		/**
+		 * Writer that counts the bytes the written characters are encoded to
+		 */
+		private class CountingWriter extends Writer {
+			private final Writer wrapped;
+			private final Charset charset;
+			private final boolean utf8;
+			private final boolean singleByte;
+
+			CountingWriter(Writer wrapped, Charset charset) {
+				this.wrapped = wrapped;
+				this.charset = charset;
+				utf8 = StandardCharsets.UTF_8.equals(charset);
+				singleByte = !utf8 && charset.newEncoder().maxBytesPerChar() == 1;
+			}
+
+			@Override
+			public void write(int c) throws IOException {
+				wrapped.write(c);
+				count += utf8 ? utf8Length((char) c) : singleByte ? 1 : String.valueOf((char) c).getBytes(charset).length;
+			}
+
+			@Override
+			public void write(char[] cbuf, int off, int len) throws IOException {
+				wrapped.write(cbuf, off, len);
+				if (utf8) {
+					for (int i = off; i < off + len; i++) {
+						count += utf8Length(cbuf[i]);
+					}
+				} else {
+					count += singleByte ? len : new String(cbuf, off, len).getBytes(charset).length;
+				}
+			}
+
+			@Override
+			public void write(String str, int off, int len) throws IOException {
+				wrapped.write(str, off, len);
+				if (utf8) {
+					for (int i = off; i < off + len; i++) {
+						count += utf8Length(str.charAt(i));
+					}
+				} else {
+					count += singleByte ? len : str.substring(off, off + len).getBytes(charset).length;
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				wrapped.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				wrapped.close();
+			}
+		}
+
+		/**
+		 * UTF-8 length of a char (surrogates count for half of the 4 bytes of
+		 * the pair)
+		 */
+		private static int utf8Length(char c) {
+			return c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+		}
+	}
+}
@@ -38,14 +38,14 @@ import org.slf4j.MDC;
  *
  */
 public class HttpRequestHandlerWithMdcPropagation implements HttpRequestHandler {
-	private static final Logger LOGGER = LoggerFactory.getLogger(HttpRequestHandlerWithMdcPropagation.class);
-	private final Map<String, String> mdcName2HeaderName;
+	private volatile Map<String, String> mdcName2HeaderName;
 
 	/**
 	 * Default constructor
 	 * <p>
-	 * Retrieves propagated MDC context attributes configuration through the
-	 * {@code slf4j.tools.propagate.mdc.fields} Java property formatted as:
+	 * Retrieves propagated MDC context attributes configuration (upon first
+	 * request) through the {@code slf4j.tools.propagate.mdc.fields} Java
+	 * property formatted as:
 	 * 
 	 * <pre class=code>
 	 * &lt;mdc name 1&gt;: &lt;header name 1&gt;, &lt;mdc name 2&gt;: &lt;header name 2&gt;, &lt;mdc name 3&gt;: &lt;header name 3&gt;
@@ -66,23 +66,29 @@ public class HttpRequestHandlerWithMdcPropagation implements HttpRequestHandler
 	 * 
 	 */
 	public HttpRequestHandlerWithMdcPropagation() {
-		mdcName2HeaderName = new HashMap<>();
+		// configuration is parsed lazily, upon first request
+	}
+
+	private static Map<String, String> parseConfig() {
+		Logger logger = LoggerFactory.getLogger(HttpRequestHandlerWithMdcPropagation.class);
+		Map<String, String> mdcName2HeaderName = new HashMap<>();
 		String mdcFieldsConfig = System.getProperty("slf4j.tools.propagate.mdc.fields", "requestId: X-Track-RequestId").trim();
 		String[] mdcFields = mdcFieldsConfig.split(",");
 		for (String mdc2Header : mdcFields) {
 			int idx = mdc2Header.indexOf(':');
 			if (idx <= 0) {
-				LOGGER.warn("Unexpected configuration format in '{}': items should be formatted as '<mdc name>: <header name>'", mdcFieldsConfig);
+				logger.warn("Unexpected configuration format in '{}': items should be formatted as '<mdc name>: <header name>'", mdcFieldsConfig);
 			} else {
 				String mdc = mdc2Header.substring(0, idx).trim();
 				String header = mdc2Header.substring(idx + 1).trim();
 				if (mdc.isEmpty() || header.isEmpty()) {
-					LOGGER.warn("Unexpected configuration format in '{}': items should be formatted as '<mdc name>: <header name>'", mdcFieldsConfig);
+					logger.warn("Unexpected configuration format in '{}': items should be formatted as '<mdc name>: <header name>'", mdcFieldsConfig);
 				} else {
 					mdcName2HeaderName.put(mdc, header);
 				}
 			}
 		}
+		return mdcName2HeaderName;
 	}
 
 	/**
@@ -98,6 +104,11 @@ public class HttpRequestHandlerWithMdcPropagation implements HttpRequestHandler
 
 	@Override
 	public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+		Map<String, String> mdcName2HeaderName = this.mdcName2HeaderName;
+		if (mdcName2HeaderName == null) {
+			// parsing is idempotent: no need to synchronize
+			mdcName2HeaderName = this.mdcName2HeaderName = parseConfig();
+		}
 		for (Entry<String, String> e : mdcName2HeaderName.entrySet()) {
 			String mdcValue = MDC.get(e.getKey());
 			if (mdcValue != null) {
@@ -19,11 +19,14 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 
 import org.slf4j.MDC;
 
 import com.google.common.base.Strings;
 import com.google.common.io.BaseEncoding;
+import com.orange.common.logging.mdc.ArrayMdcAdapter;
+import com.orange.common.logging.mdc.LazyMdcValue;
 
 /**
  * A {@link Filter servlet filter} that adds the user {@link Principal} to the
@@ -64,8 +67,22 @@ import com.google.common.io.BaseEncoding;
  * <td>{@code mdc}</td>
  * <td>{@code userId}</td>
  * </tr>
+ * <tr>
+ * <td>lazy hashing</td>
+ * <td>{@code slf4j.tools.principal_filter.lazy}</td>
+ * <td>{@code lazy}</td>
+ * <td>{@code false}</td>
+ * </tr>
  * </table>
  * 
+ * <h2>lazy hashing</h2>
+ * When enabled, the principal is hashed only if (and when) the MDC value is
+ * actually read, by an encoder, a layout or an outbound propagation (see
+ * {@link LazyMdcValue}). Requires the {@link ArrayMdcAdapter} to be installed
+ * (otherwise the hash is computed immediately). The request attribute remains
+ * a {@link String}: it is not stored but computed when first read, through a
+ * request wrapper passed down the filter chain.
+ * 
  * <h2>web.xml configuration example</h2>
  * 
  * <pre style="font-size: medium">
@@ -99,13 +116,28 @@ public class PrincipalFilter implements Filter {
 	private String hashAlgorithm;
 	private String attributeName;
 	private String mdcName;
+	private boolean lazy;
 
-	public PrincipalFilter() throws NoSuchAlgorithmException {
-		setHashAlgorithm(System.getProperty("slf4j.tools.principal_filter.hash_algorithm", "none"));
+	/**
+	 * Default constructor
+	 * <p>
+	 * Retrieves configuration from Java properties (see class doc). The hash
+	 * algorithm is not validated here (that would load security providers at
+	 * class instantiation) but in {@link #init(FilterConfig)}.
+	 */
+	public PrincipalFilter() {
+		hashAlgorithm = System.getProperty("slf4j.tools.principal_filter.hash_algorithm", "none");
 		attributeName = System.getProperty("slf4j.tools.principal_filter.attribute", "track.userId");
 		mdcName = System.getProperty("slf4j.tools.principal_filter.mdc", "userId");
+		lazy = Boolean.parseBoolean(System.getProperty("slf4j.tools.principal_filter.lazy", "false"));
 	}
 
+	/**
+	 * Filter init method
+	 * <p>
+	 * Loads configuration from filter configuration, and validates the hash
+	 * algorithm
+	 */
 	public void init(FilterConfig filterConfig) throws ServletException {
 		try {
 			setHashAlgorithm(getConfig(filterConfig, "hash_algorithm", System.getProperty("slf4j.tools.principal_filter.hash_algorithm", hashAlgorithm)));
@@ -114,6 +146,7 @@ public class PrincipalFilter implements Filter {
 		}
 		attributeName = getConfig(filterConfig, "attribute", attributeName);
 		mdcName = getConfig(filterConfig, "mdc", mdcName);
+		lazy = Boolean.parseBoolean(getConfig(filterConfig, "lazy", String.valueOf(lazy)));
 	}
 
 	private String getConfig(FilterConfig filterConfig, String param, String defaultValue) {
@@ -157,6 +190,24 @@ public class PrincipalFilter implements Filter {
 		this.mdcName = mdcName;
 	}
 
+	/**
+	 * Whether the principal is hashed only when the MDC value is actually read
+	 * <p>
+	 * Default: {@code false}
+	 */
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	/**
+	 * Whether the principal is hashed only when the MDC value is actually read
+	 * <p>
+	 * Default: {@code false}
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
 	/**
 	 * The algorithm to use to hash the principal name
 	 * <p>
@@ -207,24 +258,33 @@ public class PrincipalFilter implements Filter {
 		if (request instanceof HttpServletRequest) {
 			Principal principal = ((HttpServletRequest) request).getUserPrincipal();
 			if (principal != null) {
-				String ppal = principal.getName();
-				if (hashAlgorithm == null || "none".equalsIgnoreCase(hashAlgorithm)) {
-					// no hash
-				} else if ("hashcode".equalsIgnoreCase(hashAlgorithm)) {
-					// simply hashcode
-					ppal = Strings.padStart(Integer.toHexString(ppal.hashCode()), 8, '0');
+				final String name = principal.getName();
+				if (lazy && !isNone(hashAlgorithm)) {
+					LazyMdcValue ppal = new LazyMdcValue() {
+						@Override
+						protected String compute() {
+							try {
+								return hash(name);
+							} catch (NoSuchAlgorithmException e) {
+								// algorithm validated at init
+								throw new IllegalStateException(e);
+							}
+						}
+					};
+					// add to MDC, and expose the request attribute on read
+					LazyMdcValue.put(mdcName, ppal);
+					request = new LazyAttributeRequest((HttpServletRequest) request, attributeName, ppal);
 				} else {
-					// hexadecimal hash
+					String ppal;
 					try {
-						MessageDigest digest = MessageDigest.getInstance(hashAlgorithm);
-						ppal = BaseEncoding.base16().encode(digest.digest(ppal.getBytes()));
+						ppal = hash(name);
 					} catch (NoSuchAlgorithmException e) {
 						throw new ServletException(e);
 					}
+					// add to MDC and request attribute
+					MDC.put(mdcName, ppal);
+					request.setAttribute(attributeName, ppal);
 				}
-				// add to MDC and request attribute
-				MDC.put(mdcName, ppal);
-				request.setAttribute(attributeName, ppal);
 			}
 		}
 
@@ -235,6 +295,51 @@ public class PrincipalFilter implements Filter {
 		}
 	}
 
+	private static boolean isNone(String hashAlgorithm) {
+		return hashAlgorithm == null || "none".equalsIgnoreCase(hashAlgorithm);
+	}
+
+	/**
+	 * Hashes the principal name with the configured algorithm
+	 */
+	private String hash(String ppal) throws NoSuchAlgorithmException {
+		if (isNone(hashAlgorithm)) {
+			// no hash
+			return ppal;
+		} else if ("hashcode".equalsIgnoreCase(hashAlgorithm)) {
+			// simply hashcode
+			return Strings.padStart(Integer.toHexString(ppal.hashCode()), 8, '0');
+		} else {
+			// hexadecimal hash
+			MessageDigest digest = MessageDigest.getInstance(hashAlgorithm);
+			return BaseEncoding.base16().encode(digest.digest(ppal.getBytes()));
+		}
+	}
+
 	public void destroy() {
 	}
+
+	/**
+	 * Request wrapper that exposes a lazy value as a {@link String} request
+	 * attribute, unless the attribute was explicitly set
+	 */
+	private static class LazyAttributeRequest extends HttpServletRequestWrapper {
+		private final String attributeName;
+		private final LazyMdcValue value;
+
+		LazyAttributeRequest(HttpServletRequest request, String attributeName, LazyMdcValue value) {
+			super(request);
+			this.attributeName = attributeName;
+			this.value = value;
+		}
+
+		@Override
+		public Object getAttribute(String name) {
+			Object attribute = super.getAttribute(name);
+			if (attribute == null && attributeName.equals(name)) {
+				return value.get();
+			}
+			return attribute;
+		}
+	}
 }
\ No newline at end of file
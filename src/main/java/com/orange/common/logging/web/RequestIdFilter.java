@@ -17,8 +17,13 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import com.orange.common.logging.concurrent.RequestTiming;
+import com.orange.common.logging.concurrent.ThreadPoolTaskExecutorWithMdcPropagation;
+
 /**
  * A {@link Filter servlet filter} that adds a generated unique request ID to
  * the logging context ({@link MDC})
@@ -63,8 +68,24 @@ import org.slf4j.MDC;
  * <td>{@code mdc}</td>
  * <td>{@code requestId}</td>
  * </tr>
+ * <tr>
+ * <td>request timing summary enabled</td>
+ * <td>{@code slf4j.tools.request_filter.timing}</td>
+ * <td>{@code timing}</td>
+ * <td>{@code false}</td>
+ * </tr>
  * </table>
  * 
+ * <h2>request timing</h2>
+ * When enabled, the filter starts a {@link RequestTiming} for each request, and
+ * logs a summary line at the end of the request, with total time, time spent by
+ * asynchronous tasks queued in executors, time spent executing them and number
+ * of tasks (see {@link ThreadPoolTaskExecutorWithMdcPropagation}):
+ * 
+ * <pre>
+ * request timing: total=182305us, queued=95021us, executing=230118us, tasks=4
+ * </pre>
+ * 
  * <h2>web.xml configuration example</h2>
  * 
  * <pre style="font-size: medium">
@@ -93,10 +114,18 @@ import org.slf4j.MDC;
  * @author pismy
  */
 public class RequestIdFilter implements Filter {
+	/**
+	 * Holds the timing logger (initializes the logging framework only if
+	 * request timing is used)
+	 */
+	private static class TimingLogger {
+		static final Logger LOGGER = LoggerFactory.getLogger(RequestIdFilter.class);
+	}
 
 	private String headerName;
 	private String attributeName;
 	private String mdcName;
+	private boolean timing;
 
 	/**
 	 * Default constructor
@@ -107,6 +136,7 @@ public class RequestIdFilter implements Filter {
 		headerName = System.getProperty("slf4j.tools.request_filter.header", "X-Track-RequestId");
 		attributeName = System.getProperty("slf4j.tools.request_filter.attribute", "track.requestId");
 		mdcName = System.getProperty("slf4j.tools.request_filter.mdc", "requestId");
+		timing = Boolean.parseBoolean(System.getProperty("slf4j.tools.request_filter.timing", "false"));
 	}
 	
 	/**
@@ -118,6 +148,7 @@ public class RequestIdFilter implements Filter {
 		headerName = getConfig(filterConfig, "header", headerName);
 		attributeName = getConfig(filterConfig, "attribute", attributeName);
 		mdcName = getConfig(filterConfig, "mdc", mdcName);
+		timing = Boolean.parseBoolean(getConfig(filterConfig, "timing", String.valueOf(timing)));
 	}
 	
 	private String getConfig(FilterConfig filterConfig, String param, String defaultValue) {
@@ -183,6 +214,26 @@ public class RequestIdFilter implements Filter {
 		this.mdcName = mdcName;
 	}
 
+	/**
+	 * Whether a request timing summary shall be logged at the end of each
+	 * request
+	 * <p>
+	 * Default: {@code false}
+	 */
+	public boolean isTiming() {
+		return timing;
+	}
+
+	/**
+	 * Whether a request timing summary shall be logged at the end of each
+	 * request
+	 * <p>
+	 * Default: {@code false}
+	 */
+	public void setTiming(boolean timing) {
+		this.timing = timing;
+	}
+
 	/**
 	 * Filter implementation
 	 * <ul>
@@ -191,7 +242,9 @@ public class RequestIdFilter implements Filter {
 	 * callflow traceability),
 	 * <li>if not, generates one
 	 * <li>attaches it to the request (as an attribute) and to the {@link MDC}
-	 * context.
+	 * context,
+	 * <li>if enabled, starts a {@link RequestTiming} and logs its summary at
+	 * the end of the request.
 	 * </ul>
 	 */
 	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
@@ -214,9 +267,16 @@ public class RequestIdFilter implements Filter {
 		// attach to MDC context
 		MDC.put(mdcName, reqId);
 
+		// start request timing (unless already started: forward, include...)
+		RequestTiming requestTiming = timing && RequestTiming.current() == null ? RequestTiming.start() : null;
+
 		try {
 			chain.doFilter(request, response);
 		} finally {
+			if (requestTiming != null) {
+				requestTiming.stop();
+				TimingLogger.LOGGER.info("request timing: {}", requestTiming);
+			}
 			// remove from MDC context
 			MDC.remove(mdcName);
 		}
@@ -8,10 +8,14 @@
 package com.orange.common.logging.web;
 
 import java.io.IOException;
+import java.util.EnumSet;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.FilterRegistration;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -33,6 +37,12 @@ import org.slf4j.MDC;
  * <p>
  * By default the session ID MDC attribute is {@code sessionId} but can be overridden with the Java property {@code slf4j.tools.session_filter.mdc}
  * or the servlet filter configuration {@code mdc}.
+ * <p>
+ * The session listener is declared with {@link WebListener}, which requires
+ * annotation scanning. When scanning is disabled (or unavailable, such as in
+ * native images), use {@link #register(ServletContext)} from a
+ * {@code ServletContainerInitializer} or {@code ServletContextListener} to
+ * register both the filter and the listener programmatically.
  * 
  * @author pismy
  */
@@ -102,6 +112,23 @@ public class SessionIdFilter implements Filter, HttpSessionListener {
 	public void destroy() {
 	}
 
+	/**
+	 * Registers a {@link SessionIdFilter} programmatically, both as a session
+	 * listener and as a filter mapped on all requests (after previously
+	 * declared filters)
+	 * 
+	 * @param servletContext
+	 *            the servlet context (must not be initialized yet)
+	 * @return the registered filter
+	 */
+	public static SessionIdFilter register(ServletContext servletContext) {
+		SessionIdFilter filter = new SessionIdFilter();
+		servletContext.addListener(filter);
+		FilterRegistration.Dynamic registration = servletContext.addFilter(SessionIdFilter.class.getSimpleName(), filter);
+		registration.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), true, "/*");
+		return filter;
+	}
+
 	public void sessionCreated(HttpSessionEvent se) {
 		MDC.put(mdcName, se.getSession().getId());
 	}
@@ -0,0 +1,358 @@
+package com.orange.common.logging;
+
+import static com.orange.common.logging.Stubs.stub;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import ch.qos.logback.classic.Level;
+
+import com.orange.common.logging.concurrent.ThreadPoolTaskExecutorWithMdcPropagation;
+import com.orange.common.logging.web.AccessLogFilter;
+import com.orange.common.logging.web.HttpRequestHandlerWithMdcPropagation;
+import com.orange.common.logging.web.PrincipalFilter;
+import com.orange.common.logging.web.RequestIdFilter;
+import com.orange.common.logging.web.SessionIdFilter;
+
+/**
+ * Asserts per-invocation allocation budgets on hot paths (executed on every
+ * request or task)
+ * <p>
+ * Budgets are the measured bytes per invocation, on the calling thread with
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}: any
+ * change that adds allocations fails. Either remove the extra allocations or
+ * raise the budget consciously.
+ * <p>
+ * Budgets rely on escape analysis, that may change from one JVM to another: a
+ * margin (in bytes, {@code 0} by default) may be set with
+ * {@code -Dallocation.margin} (about {@code 16} to absorb JIT noise).
+ */
+public class AllocationBudgetTest {
+	private static final int WARMUP = 50000;
+	private static final int ITERATIONS = 20000;
+	private static final int ROUNDS = 5;
+	private static final int MARGIN = Integer.getInteger("allocation.margin", 0);
+
+	private com.sun.management.ThreadMXBean threadMXBean;
+
+	private final StubRequest request = new StubRequest();
+	private final HttpServletResponse response = new StubResponse();
+	private final FilterChain chain = new FilterChain() {
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response) {
+		}
+	};
+
+	@Before
+	public void setUp() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue("thread allocation measurement not supported", bean instanceof com.sun.management.ThreadMXBean);
+		threadMXBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue("thread allocation measurement not supported", threadMXBean.isThreadAllocatedMemorySupported());
+		threadMXBean.setThreadAllocatedMemoryEnabled(true);
+		MDC.clear();
+	}
+
+	@After
+	public void tearDown() {
+		MDC.clear();
+	}
+
+	@Test
+	public void request_id_filter_with_generated_id() throws Exception {
+		final RequestIdFilter filter = new RequestIdFilter();
+		assertBudget("RequestIdFilter.doFilter (generated id)", 88, new Invocation() {
+			@Override
+			public void run() throws Exception {
+				request.reset();
+				filter.doFilter(request, response, chain);
+			}
+		});
+	}
+
+	@Test
+	public void request_id_filter_with_header_id() throws Exception {
+		final RequestIdFilter filter = new RequestIdFilter();
+		request.header = "0123456789abcdef";
+		assertBudget("RequestIdFilter.doFilter (header id)", 32, new Invocation() {
+			@Override
+			public void run() throws Exception {
+				request.reset();
+				filter.doFilter(request, response, chain);
+			}
+		});
+	}
+
+	@Test
+	public void principal_filter_without_hash() throws Exception {
+		final PrincipalFilter filter = new PrincipalFilter();
+		request.principal = new StubPrincipal("john.doe@acme.com");
+		assertBudget("PrincipalFilter.doFilter (none)", 32, new Invocation() {
+			@Override
+			public void run() throws Exception {
+				request.reset();
+				filter.doFilter(request, response, chain);
+			}
+		});
+	}
+
+	@Test
+	public void principal_filter_with_hashcode() throws Exception {
+		final PrincipalFilter filter = new PrincipalFilter();
+		filter.setHashAlgorithm("hashcode");
+		request.principal = new StubPrincipal("john.doe@acme.com");
+		assertBudget("PrincipalFilter.doFilter (hashcode)", 80, new Invocation() {
+			@Override
+			public void run() throws Exception {
+				request.reset();
+				filter.doFilter(request, response, chain);
+			}
+		});
+	}
+
+	@Test
+	public void session_id_filter() throws Exception {
+		final SessionIdFilter filter = new SessionIdFilter();
+		request.session = stubSession("node01abcdefghijklmnop");
+		assertBudget("SessionIdFilter.doFilter", 32, new Invocation() {
+			@Override
+			public void run() throws Exception {
+				request.reset();
+				filter.doFilter(request, response, chain);
+			}
+		});
+	}
+
+	@Test
+	public void access_log_filter() throws Exception {
+		// enabled logger, without appender: measures line formatting and event creation
+		ch.qos.logback.classic.Logger logger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger("access.budget");
+		logger.setLevel(Level.INFO);
+		logger.setAdditive(false);
+		final AccessLogFilter filter = new AccessLogFilter();
+		filter.setLoggerName("access.budget");
+		request.uriTemplate = "/things/{id}";
+		MDC.put("requestId", "0123456789abcdef");
+		MDC.put("sessionId", "node01abcdefghijklmnop");
+		MDC.put("userId", "john.doe@acme.com");
+		assertBudget("AccessLogFilter.doFilter", 288, new Invocation() {
+			@Override
+			public void run() throws Exception {
+				request.reset();
+				filter.doFilter(request, response, chain);
+			}
+		});
+	}
+
+	@Test
+	public void http_request_handler() throws Exception {
+		final HttpRequestHandlerWithMdcPropagation handler = new HttpRequestHandlerWithMdcPropagation();
+		final StubHttpRequest httpRequest = new StubHttpRequest();
+		MDC.put("requestId", "0123456789abcdef");
+		assertBudget("HttpRequestHandlerWithMdcPropagation.handle", 64, new Invocation() {
+			@Override
+			public void run() throws Exception {
+				handler.handle(httpRequest, null, null);
+			}
+		});
+	}
+
+	@Test
+	public void executor_submit() throws Exception {
+		final ThreadPoolTaskExecutorWithMdcPropagation executor = new ThreadPoolTaskExecutorWithMdcPropagation(2, 2, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+		MDC.put("requestId", "0123456789abcdef");
+		MDC.put("sessionId", "node01abcdefghijklmnop");
+		MDC.put("userId", "john.doe@acme.com");
+		try {
+			assertBudget("ThreadPoolTaskExecutorWithMdcPropagation.submit", 352, new Invocation() {
+				@Override
+				public void run() throws Exception {
+					executor.submit(task);
+				}
+			});
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	// ================================================================================================================
+	// measurement
+	// ================================================================================================================
+
+	private interface Invocation {
+		void run() throws Exception;
+	}
+
+	private void assertBudget(String name, long budget, Invocation invocation) throws Exception {
+		long threadId = Thread.currentThread().getId();
+		// warm up (let the JIT compile and apply escape analysis)
+		for (int i = 0; i < WARMUP; i++) {
+			invocation.run();
+		}
+		// keep the best round, to filter out noise (JIT, class loading...)
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < ROUNDS; r++) {
+			long before = threadMXBean.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < ITERATIONS; i++) {
+				invocation.run();
+			}
+			long after = threadMXBean.getThreadAllocatedBytes(threadId);
+			best = Math.min(best, (after - before) / ITERATIONS);
+		}
+		assertThat(best).as("bytes allocated per invocation of " + name + " (budget: " + budget + ", margin: " + MARGIN + ")")
+				.isLessThanOrEqualTo(budget + MARGIN);
+	}
+
+	// ================================================================================================================
+	// allocation-free stubs
+	// ================================================================================================================
+
+	/**
+	 * Request with a fixed number of attribute slots, that doesn't allocate
+	 */
+	private static class StubRequest extends HttpServletRequestWrapper {
+		private final String[] names = new String[4];
+		private final Object[] values = new Object[4];
+		String header;
+		Principal principal;
+		HttpSession session;
+		String uriTemplate;
+
+		StubRequest() {
+			super(stub(HttpServletRequest.class));
+		}
+
+		void reset() {
+			for (int i = 0; i < names.length; i++) {
+				names[i] = null;
+				values[i] = null;
+			}
+			if (uriTemplate != null) {
+				setAttribute("org.springframework.web.servlet.HandlerMapping.bestMatchingPattern", uriTemplate);
+			}
+		}
+
+		@Override
+		public String getMethod() {
+			return "GET";
+		}
+
+		@Override
+		public String getRequestURI() {
+			return "/things/42";
+		}
+
+		@Override
+		public boolean isAsyncStarted() {
+			return false;
+		}
+
+		@Override
+		public Object getAttribute(String name) {
+			for (int i = 0; i < names.length; i++) {
+				if (name.equals(names[i])) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void setAttribute(String name, Object value) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i] == null || name.equals(names[i])) {
+					names[i] = name;
+					values[i] = value;
+					return;
+				}
+			}
+			throw new IllegalStateException("no more attribute slots");
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return header;
+		}
+
+		@Override
+		public Principal getUserPrincipal() {
+			return principal;
+		}
+
+		@Override
+		public HttpSession getSession(boolean create) {
+			return session;
+		}
+	}
+
+	private static class StubResponse extends HttpServletResponseWrapper {
+		StubResponse() {
+			super(stub(HttpServletResponse.class));
+		}
+
+		@Override
+		public int getStatus() {
+			return 200;
+		}
+	}
+
+	private static class StubPrincipal implements Principal {
+		private final String name;
+
+		StubPrincipal(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+	}
+
+	private static HttpSession stubSession(String id) {
+		return stub(HttpSession.class, Collections.<String, Object> singletonMap("getId", id));
+	}
+
+	/**
+	 * Http request that keeps only the last added header
+	 */
+	private static class StubHttpRequest extends BasicHttpRequest {
+		Header last;
+
+		StubHttpRequest() {
+			super("GET", "/");
+		}
+
+		@Override
+		public void addHeader(Header header) {
+			last = header;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package com.orange.common.logging;
+
+import static com.orange.common.logging.Stubs.stub;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+import com.orange.common.logging.concurrent.MdcSupport;
+import com.orange.common.logging.concurrent.StripedExecutorWithMdcPropagation;
+import com.orange.common.logging.concurrent.ThreadPoolTaskExecutorWithMdcPropagation;
+import com.orange.common.logging.web.PrincipalFilter;
+import com.orange.common.logging.web.RequestIdFilter;
+
+/**
+ * Stress test of the MDC propagation: concurrent requests go through the
+ * filters with randomized contexts, and fire asynchronous tasks through the
+ * MDC-propagating executors and {@link MdcSupport#wrap(Runnable)}
+ * <p>
+ * Every task logs the request and user IDs it was created with: a capturing
+ * appender asserts that no log event ever carries another request's context
+ * (nor a value leaked by a previous task). The throughput is logged (at
+ * {@code DEBUG} level), so that changes to the propagation path can be
+ * validated for both speed and isolation.
+ * <p>
+ * The number of tasks can be raised with the {@code stress.tasks} system
+ * property:
+ *
+ * <pre>
+ * mvn test -Dtest=MdcPropagationStressTest -Dstress.tasks=5000000
+ * </pre>
+ */
+public class MdcPropagationStressTest {
+	private static final int TASKS = Integer.getInteger("stress.tasks", 200000);
+	private static final int PRODUCERS = Math.max(4, Runtime.getRuntime().availableProcessors());
+	private static final int TASKS_PER_REQUEST = 4;
+	private static final int MAX_IN_FLIGHT = 10000;
+
+	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(MdcPropagationStressTest.class);
+
+	private final CheckingAppender appender = new CheckingAppender();
+	private final List<ExecutorService> executors = new ArrayList<>();
+	private Logger logger;
+
+	/**
+	 * Checks the MDC of each event against its arguments (the expected request
+	 * and user IDs)
+	 */
+	private static class CheckingAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+		private final LongAdder events = new LongAdder();
+		private final LongAdder violations = new LongAdder();
+		private final Queue<String> samples = new ConcurrentLinkedQueue<>();
+
+		@Override
+		protected void append(ILoggingEvent event) {
+			events.increment();
+			Map<String, String> mdc = event.getMDCPropertyMap();
+			Object[] args = event.getArgumentArray();
+			if (!args[0].equals(mdc.get("requestId")) || !args[1].equals(mdc.get("userId")) || mdc.containsKey("leak")) {
+				violations.increment();
+				if (samples.size() < 10) {
+					samples.add("expected " + args[0] + "/" + args[1] + " but was " + mdc);
+				}
+			}
+		}
+	}
+
+	@Before
+	public void setUp() {
+		logger = (Logger) LoggerFactory.getLogger("stress");
+		logger.setLevel(Level.INFO);
+		logger.setAdditive(false);
+		appender.setContext(logger.getLoggerContext());
+		appender.start();
+		logger.addAppender(appender);
+		MDC.clear();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		for (ExecutorService executor : executors) {
+			executor.shutdown();
+		}
+		for (ExecutorService executor : executors) {
+			assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+		}
+		logger.detachAppender(appender);
+		MDC.clear();
+	}
+
+	/**
+	 * Registers an executor to be shut down after the test
+	 */
+	private <E extends ExecutorService> E shutdownAfterTest(E executor) {
+		executors.add(executor);
+		return executor;
+	}
+
+	@Test
+	public void no_event_should_carry_another_request_context() throws Exception {
+		final ThreadPoolTaskExecutorWithMdcPropagation pool = shutdownAfterTest(new ThreadPoolTaskExecutorWithMdcPropagation(8, 8, 1, TimeUnit.MINUTES,
+				new LinkedBlockingQueue<Runnable>()));
+		// plain executor, with tasks wrapped by MdcSupport (and sometimes run by
+		// the caller)
+		final ThreadPoolExecutor plain = shutdownAfterTest(new ThreadPoolExecutor(4, 4, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(64),
+				new ThreadPoolExecutor.CallerRunsPolicy()));
+		final StripedExecutorWithMdcPropagation striped = shutdownAfterTest(new StripedExecutorWithMdcPropagation("userId", 4));
+		final Filter[] filters = { new RequestIdFilter(), new PrincipalFilter() };
+		FilterConfig config = stub(FilterConfig.class);
+		for (Filter filter : filters) {
+			filter.init(config);
+		}
+		final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+		final AtomicLong submitted = new AtomicLong();
+		final LongAdder isolationErrors = new LongAdder();
+
+		ExecutorService producers = shutdownAfterTest(Executors.newFixedThreadPool(PRODUCERS));
+		long start = System.nanoTime();
+		List<Future<?>> done = new ArrayList<>();
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			done.add(producers.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (long n = 0; submitted.getAndAdd(TASKS_PER_REQUEST) < TASKS; n++) {
+						final String requestId = "req-" + producer + "-" + n;
+						final String userId = "user" + ThreadLocalRandom.current().nextInt(1000);
+						FilterChain servlet = new FilterChain() {
+							@Override
+							public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+								// randomized context: noise keys and values
+								int noise = ThreadLocalRandom.current().nextInt(10);
+								for (int i = 0; i < noise; i++) {
+									MDC.put("noise" + i, requestId);
+								}
+								for (int t = 0; t < TASKS_PER_REQUEST; t++) {
+									inFlight.acquireUninterruptibly();
+									Runnable task = new Runnable() {
+										@Override
+										public void run() {
+											try {
+												logger.info("{} {}", requestId, userId);
+												if (ThreadLocalRandom.current().nextInt(8) == 0) {
+													// leaking task: must not pollute subsequent ones
+													MDC.put("leak", requestId);
+													MDC.put("requestId", "leaked");
+												}
+											} finally {
+												inFlight.release();
+											}
+										}
+									};
+									switch (ThreadLocalRandom.current().nextInt(3)) {
+									case 0:
+										pool.execute(task);
+										break;
+									case 1:
+										plain.execute(MdcSupport.wrap(task));
+										break;
+									default:
+										striped.execute(task);
+									}
+									// caller-run tasks must restore the request context
+									if (!requestId.equals(MDC.get("requestId")) || MDC.get("leak") != null) {
+										isolationErrors.increment();
+									}
+								}
+							}
+						};
+						run(filters, stubRequest(requestId, userId), servlet);
+						// filters cleaned up their keys, but not our noise keys
+						MDC.clear();
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : done) {
+			f.get();
+		}
+		// wait for the last tasks
+		inFlight.acquire(MAX_IN_FLIGHT);
+		long elapsed = System.nanoTime() - start;
+
+		long events = appender.events.sum();
+		LOGGER.debug("{} tasks from {} producers in {} ms: {} tasks/s, {} violations", events, PRODUCERS, TimeUnit.NANOSECONDS.toMillis(elapsed),
+				(long) (events * 1e9 / elapsed), appender.violations.sum());
+		assertThat(appender.samples).isEmpty();
+		assertThat(appender.violations.sum()).isEqualTo(0);
+		assertThat(isolationErrors.sum()).isEqualTo(0);
+		assertThat(events).isGreaterThanOrEqualTo(TASKS);
+	}
+
+	private static void run(final Filter[] filters, HttpServletRequest request, final FilterChain servlet) throws IOException, ServletException {
+		HttpServletResponse response = stub(HttpServletResponse.class);
+		new FilterChain() {
+			private int index;
+
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+				if (index < filters.length) {
+					filters[index++].doFilter(request, response, this);
+				} else {
+					servlet.doFilter(request, response);
+				}
+			}
+		}.doFilter(request, response);
+	}
+
+	private static HttpServletRequest stubRequest(String requestId, final String userId) {
+		Map<String, Object> answers = new HashMap<>();
+		// incoming request ID header
+		answers.put("getHeader", requestId);
+		answers.put("getUserPrincipal", new Principal() {
+			@Override
+			public String getName() {
+				return userId;
+			}
+		});
+		return stub(HttpServletRequest.class, answers);
+	}
+}
@@ -0,0 +1,62 @@
+package com.orange.common.logging;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interface stubs based on dynamic proxies (servlet API mocks for tests and
+ * benchmarks)
+ * <p>
+ * Stubs don't allocate when invoked (except for storing attributes), thus may
+ * be used in allocation measurements.
+ */
+public final class Stubs {
+	private Stubs() {
+	}
+
+	/**
+	 * Stubs an interface: methods return {@code null}
+	 */
+	public static <T> T stub(Class<T> type) {
+		return stub(type, Collections.<String, Object> emptyMap());
+	}
+
+	/**
+	 * Stubs an interface: methods return the given answers (by method name),
+	 * or {@code null}; {@code get/set/removeAttribute} methods are backed by a
+	 * map
+	 */
+	public static <T> T stub(Class<T> type, Map<String, Object> answers) {
+		return stub(type, answers, new HashMap<String, Object>());
+	}
+
+	/**
+	 * Stubs an interface: methods return the given answers (by method name),
+	 * or {@code null}; {@code get/set/removeAttribute} methods are backed by
+	 * the given map
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T stub(Class<T> type, final Map<String, Object> answers, final Map<String, Object> attributes) {
+		return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					attributes.put((String) args[0], args[1]);
+					return null;
+				case "removeAttribute":
+					attributes.remove(args[0]);
+					return null;
+				default:
+					return answers.get(method.getName());
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,103 @@
+package com.orange.common.logging.analyzer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LogAnalyzerTest {
+	/**
+	 * Line without timestamp (a null one)
+	 */
+	private static final String NO_TIMESTAMP = "{\"@timestamp\":null,\"message\":\"no time\",\"level\":\"ERROR\",\"requestId\":\"req10\",\"stack_hash\":\"hash1\"}\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Writes 1000 requests of 5 events each, from 10 users; every 10th request
+	 * fails with one of 3 stack hashes; the last request has a null user
+	 */
+	private File writeLogs() throws IOException {
+		File file = folder.newFile("app.json");
+		try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			for (int r = 0; r < 1000; r++) {
+				for (int e = 0; e < 5; e++) {
+					boolean error = r % 10 == 0 && e == 4;
+					out.write("{\"@timestamp\":\"2017-06-01T10:" + String.format("%02d:%02d.%03d", r / 60 % 60, r % 60, e) + "+02:00\",\"@version\":1,"
+							+ "\"message\":\"step " + e + " of \\\"request\\\" " + r + "\",\"logger_name\":\"com.acme.Service\",\"thread_name\":\"http-" + r % 8
+							+ "\",\"level\":\"" + (error ? "ERROR" : "INFO") + "\",\"level_value\":" + (error ? 40000 : 20000) + ",\"requestId\":\"req" + r
+							+ "\",\"userId\":" + (r == 999 ? "null" : "\"user" + r % 10 + "\"") + ",\"tags\":[\"a\",\"b\"],\"nested\":{\"x\":1}"
+							+ (error ? ",\"stack_trace\":\"java.lang.IllegalStateException\\n\\tat com.acme.Service\",\"stack_hash\":\"hash" + r % 3 + "\"" : "")
+							+ "}\n");
+				}
+			}
+			// garbage line
+			out.write("not json\n");
+			out.write(NO_TIMESTAMP);
+		}
+		return file;
+	}
+
+	@Test
+	public void analysis_should_not_depend_on_chunking() throws IOException {
+		File file = writeLogs();
+		List<File> files = Collections.singletonList(file);
+
+		LogAnalyzer single = new LogAnalyzer();
+		single.setTimelineRequests(Collections.singletonList("req10"));
+		LogAnalysis whole = single.analyze(files);
+
+		LogAnalyzer chunked = new LogAnalyzer();
+		chunked.setTimelineRequests(Collections.singletonList("req10"));
+		// many small chunks, processed in parallel
+		chunked.setChunkSize(4096);
+		chunked.setParallelism(4);
+		LogAnalysis parallel = chunked.analyze(files);
+
+		for (LogAnalysis analysis : Arrays.asList(whole, parallel)) {
+			assertThat(analysis.getEvents()).isEqualTo(5000);
+			assertThat(analysis.getParseErrors()).isEqualTo(2);
+			assertThat(analysis.getBytes()).isEqualTo(file.length() - "not json\n".length() - NO_TIMESTAMP.length());
+			assertThat(analysis.getRequests()).hasSize(1000);
+			assertThat(analysis.getUsers()).hasSize(10);
+			assertThat(analysis.getUsers().get("user3").getEvents()).isEqualTo(500);
+			assertThat(analysis.getUsers().get("user9").getEvents()).isEqualTo(495);
+
+			List<LogAnalysis.StackHash> hashes = analysis.topStackHashes(10);
+			assertThat(hashes).hasSize(3);
+			// req0, req30, ... -> hash0 (34 times)
+			assertThat(hashes.get(0).getHash()).isEqualTo("hash0");
+			assertThat(hashes.get(0).getCount()).isEqualTo(34);
+			assertThat(hashes.get(0).getFirstMessage()).isEqualTo("step 4 of \"request\" 0");
+			assertThat(analysis.getStackHashes().get("hash1").getFirstSeen()).isGreaterThan(0);
+			assertThat(analysis.topRequests(3)).extracting("events").containsExactly(5L, 5L, 5L);
+
+			LogAnalysis.Request request = analysis.getRequests().get("req10");
+			assertThat(request.getEvents()).isEqualTo(5);
+			assertThat(request.getErrors()).isEqualTo(1);
+			assertThat(request.getDuration()).isEqualTo(4);
+			assertThat(request.getTimeline()).extracting("message").containsExactly("step 0 of \"request\" 10", "step 1 of \"request\" 10",
+					"step 2 of \"request\" 10", "step 3 of \"request\" 10", "step 4 of \"request\" 10");
+			// other requests are only counted
+			assertThat(analysis.getRequests().get("req11").getEvents()).isEqualTo(5);
+			assertThat(analysis.getRequests().get("req11").getTimeline()).isEmpty();
+		}
+		assertThat(parallel.getStackHashes().get("hash1").getFirstSeen()).isEqualTo(whole.getStackHashes().get("hash1").getFirstSeen());
+
+		StringWriter report = new StringWriter();
+		parallel.report(report, 5);
+		assertThat(report.toString()).contains("5000 events").contains("Timeline of request req10").contains("hash0");
+	}
+}
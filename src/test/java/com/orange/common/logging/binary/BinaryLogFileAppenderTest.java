@@ -0,0 +1,289 @@
+package com.orange.common.logging.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class BinaryLogFileAppenderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private BinaryLogFileAppender start(File file, int blockSize) {
+		BinaryLogFileAppender appender = new BinaryLogFileAppender();
+		appender.setContext((LoggerContext) LoggerFactory.getILoggerFactory());
+		appender.setFile(file.getPath());
+		appender.setBlockSize(blockSize);
+		appender.setFlushPeriod(null);
+		appender.start();
+		assertThat(appender.isStarted()).isTrue();
+		return appender;
+	}
+
+	private static LoggingEvent event(int i) {
+		Logger logger = (Logger) LoggerFactory.getLogger(i % 2 == 0 ? "com.xyz.Even" : "com.xyz.Odd");
+		Exception error = i % 10 == 0 ? new IllegalStateException("failure #" + i) : null;
+		LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, i % 10 == 0 ? Level.ERROR : Level.INFO, "event #{} \"quoted\"\n", error,
+				new Object[] { i });
+		event.setTimeStamp(1500000000000L + i * 7);
+		event.setThreadName("worker-" + (i % 3));
+		Map<String, String> mdc = new HashMap<>();
+		mdc.put("requestId", "req-" + (i / 4));
+		mdc.put("userId", "user-" + (i % 5));
+		event.setMDCPropertyMap(mdc);
+		return event;
+	}
+
+	@Test
+	public void events_should_be_read_back() throws IOException {
+		File file = new File(folder.getRoot(), "logs/app.blog");
+		// small blocks: several blocks and dictionaries
+		BinaryLogFileAppender appender = start(file, 1024);
+		for (int i = 0; i < 1000; i++) {
+			appender.doAppend(event(i));
+		}
+		appender.stop();
+
+		try (BinaryLogReader reader = new BinaryLogReader(file)) {
+			for (int i = 0; i < 1000; i++) {
+				LoggingEvent expected = event(i);
+				BinaryLogEvent actual = reader.read();
+				assertThat(actual).isNotNull();
+				assertThat(actual.getTimestamp()).isEqualTo(expected.getTimeStamp());
+				assertThat(actual.getLevel()).isEqualTo(expected.getLevel().toString());
+				assertThat(actual.getLoggerName()).isEqualTo(expected.getLoggerName());
+				assertThat(actual.getThreadName()).isEqualTo(expected.getThreadName());
+				assertThat(actual.getMessage()).isEqualTo(expected.getFormattedMessage());
+				assertThat(actual.getMdc()).isEqualTo(expected.getMDCPropertyMap());
+				if (i % 10 == 0) {
+					assertThat(actual.getStackTrace()).contains("IllegalStateException: failure #" + i).contains("\tat ");
+				} else {
+					assertThat(actual.getStackTrace()).isNull();
+				}
+			}
+			assertThat(reader.read()).isNull();
+		}
+	}
+
+	@Test
+	public void truncated_block_should_be_ignored() throws IOException {
+		File file = folder.newFile("truncated.blog");
+		BinaryLogFileAppender appender = start(file, 1024 * 1024);
+		appender.doAppend(event(1));
+		appender.flush();
+		long firstBlockEnd = file.length();
+		appender.doAppend(event(2));
+		appender.stop();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(firstBlockEnd + (file.length() - firstBlockEnd) / 2);
+		}
+
+		try (BinaryLogReader reader = new BinaryLogReader(file)) {
+			assertThat(reader.read().getMessage()).isEqualTo("event #1 \"quoted\"\n");
+			assertThat(reader.read()).isNull();
+		}
+	}
+
+	@Test
+	public void truncated_block_should_be_removed_on_restart() throws IOException {
+		File file = folder.newFile("restart.blog");
+		BinaryLogFileAppender appender = start(file, 1024 * 1024);
+		appender.doAppend(event(1));
+		appender.flush();
+		long firstBlockEnd = file.length();
+		appender.doAppend(event(2));
+		appender.stop();
+		// crash while writing the second block
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(firstBlockEnd + (file.length() - firstBlockEnd) / 2);
+		}
+
+		appender = start(file, 1024 * 1024);
+		assertThat(file.length()).isEqualTo(firstBlockEnd);
+		appender.doAppend(event(3));
+		appender.stop();
+
+		try (BinaryLogReader reader = new BinaryLogReader(file)) {
+			assertThat(reader.read().getMessage()).isEqualTo("event #1 \"quoted\"\n");
+			assertThat(reader.read().getMessage()).isEqualTo("event #3 \"quoted\"\n");
+			assertThat(reader.read()).isNull();
+		}
+	}
+
+	@Test
+	public void corrupted_block_should_be_rejected() throws IOException {
+		File file = folder.newFile("corrupted.blog");
+		BinaryLogFileAppender appender = start(file, 1024 * 1024);
+		appender.doAppend(event(1));
+		appender.stop();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// announce a larger payload than the compressed data holds
+			raf.seek(4);
+			raf.writeInt(raf.readInt() * 4);
+		}
+		try (BinaryLogReader reader = new BinaryLogReader(file)) {
+			reader.read();
+			fail("corrupted block should be rejected");
+		} catch (IOException e) {
+			assertThat(e).hasMessageStartingWith("Corrupted binary log block");
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// negative length
+			raf.seek(4);
+			raf.writeInt(-1);
+		}
+		try (BinaryLogReader reader = new BinaryLogReader(file)) {
+			reader.read();
+			fail("corrupted block should be rejected");
+		} catch (IOException e) {
+			assertThat(e).hasMessage("Corrupted binary log block (bad header)");
+		}
+	}
+
+	/**
+	 * Writes a single block holding the given (raw) payload
+	 */
+	private File writeBlock(String name, BinaryLogFormat.Buffer payload, int events) throws IOException {
+		Deflater deflater = new Deflater();
+		deflater.setInput(payload.bytes, 0, payload.length);
+		deflater.finish();
+		byte[] compressed = new byte[BinaryLogFormat.maxCompressedLength(payload.length)];
+		int compressedLength = deflater.deflate(compressed);
+		deflater.end();
+		File file = folder.newFile(name);
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+			out.writeInt(BinaryLogFormat.MAGIC);
+			out.writeInt(payload.length);
+			out.writeInt(compressedLength);
+			out.writeInt(events);
+			out.write(compressed, 0, compressedLength);
+		}
+		return file;
+	}
+
+	/**
+	 * Encodes a valid event, without its stack trace (last field)
+	 */
+	private static BinaryLogFormat.Buffer eventWithoutStackTrace() {
+		BinaryLogFormat.Buffer payload = new BinaryLogFormat.Buffer(64);
+		payload.writeZigZag(1500000000000L);
+		payload.writeByte(2);
+		payload.writeVarLong(0);
+		payload.writeString("com.xyz.Logger");
+		payload.writeVarLong(0);
+		payload.writeString("main");
+		payload.writeString("message");
+		payload.writeVarLong(1);
+		// reference to an already defined string
+		payload.writeVarLong(1);
+		payload.writeVarLong(2);
+		return payload;
+	}
+
+	private void assertCorrupted(File file, String message) {
+		try (BinaryLogReader reader = new BinaryLogReader(file)) {
+			while (reader.read() != null) {
+			}
+			fail("corrupted block should be rejected");
+		} catch (IOException e) {
+			assertThat(e).hasMessageStartingWith(message);
+		}
+	}
+
+	@Test
+	public void corrupted_payload_should_be_rejected() throws IOException {
+		BinaryLogFormat.Buffer valid = eventWithoutStackTrace();
+		valid.writeString("");
+		try (BinaryLogReader reader = new BinaryLogReader(writeBlock("valid.blog", valid, 1))) {
+			BinaryLogEvent event = reader.read();
+			assertThat(event.getMessage()).isEqualTo("message");
+			assertThat(event.getMdc()).containsEntry("com.xyz.Logger", "main");
+			assertThat(reader.read()).isNull();
+		}
+
+		// payload truncated in the middle of an event
+		BinaryLogFormat.Buffer truncated = eventWithoutStackTrace();
+		assertCorrupted(writeBlock("truncated-payload.blog", truncated, 1), "Corrupted binary log block (unexpected end of payload)");
+
+		// more events announced than the payload can hold
+		assertCorrupted(writeBlock("events.blog", valid, 100), "Corrupted binary log block (bad header)");
+
+		// missing events
+		BinaryLogFormat.Buffer twoEvents = eventWithoutStackTrace();
+		twoEvents.writeString("");
+		twoEvents.writeZigZag(1);
+		twoEvents.writeByte(2);
+		assertCorrupted(writeBlock("missing.blog", twoEvents, 1), "Corrupted binary log block (unexpected data after last event)");
+
+		// bad level
+		BinaryLogFormat.Buffer level = new BinaryLogFormat.Buffer(64);
+		level.writeZigZag(0);
+		level.writeByte(9);
+		level.writeString("padding");
+		assertCorrupted(writeBlock("level.blog", level, 1), "Corrupted binary log block (bad level: 9)");
+
+		// undefined string reference
+		BinaryLogFormat.Buffer ref = new BinaryLogFormat.Buffer(64);
+		ref.writeZigZag(0);
+		ref.writeByte(2);
+		ref.writeVarLong(3);
+		ref.writeString("padding");
+		assertCorrupted(writeBlock("ref.blog", ref, 1), "Corrupted binary log block (value out of range: 3)");
+
+		// oversized and negative string lengths
+		BinaryLogFormat.Buffer oversized = eventWithoutStackTrace();
+		oversized.writeVarLong(1000);
+		assertCorrupted(writeBlock("oversized.blog", oversized, 1), "Corrupted binary log block (value out of range: 1000)");
+		BinaryLogFormat.Buffer negative = eventWithoutStackTrace();
+		negative.writeVarLong(-1);
+		assertCorrupted(writeBlock("negative.blog", negative, 1), "Corrupted binary log block (value out of range: -1)");
+
+		// varint longer than 10 bytes
+		BinaryLogFormat.Buffer varint = new BinaryLogFormat.Buffer(64);
+		for (int i = 0; i < 12; i++) {
+			varint.writeByte(0x80);
+		}
+		assertCorrupted(writeBlock("varint.blog", varint, 1), "Corrupted binary log block (varint too long)");
+	}
+
+	@Test
+	public void events_should_be_converted_to_json() throws IOException {
+		File file = folder.newFile("json.blog");
+		BinaryLogFileAppender appender = start(file, 1024 * 1024);
+		appender.doAppend(event(10));
+		appender.stop();
+
+		StringWriter json = new StringWriter();
+		try (BinaryLogReader reader = new BinaryLogReader(file)) {
+			assertThat(new BinaryLogToJson(json).convert(reader)).isEqualTo(1);
+		}
+		assertThat(json.toString()).startsWith("{\"@timestamp\":\"2017-07-")
+				.contains(",\"message\":\"event #10 \\\"quoted\\\"\\n\"")
+				.contains(",\"logger_name\":\"com.xyz.Even\"")
+				.contains(",\"thread_name\":\"worker-1\"")
+				.contains(",\"level\":\"ERROR\"")
+				.contains(",\"requestId\":\"req-2\"")
+				.contains(",\"userId\":\"user-0\"")
+				.contains(",\"stack_trace\":\"java.lang.IllegalStateException: failure #10\\n\\tat ")
+				.endsWith("}\n");
+	}
+}
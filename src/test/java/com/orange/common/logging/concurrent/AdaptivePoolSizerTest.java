@@ -0,0 +1,188 @@
+package com.orange.common.logging.concurrent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+
+/**
+ * Drives the {@link AdaptivePoolSizer} with a simulated load (deterministic
+ * clock and queue wait samples)
+ */
+public class AdaptivePoolSizerTest {
+	private static final long PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(100);
+	/**
+	 * Tasks a thread completes per period (10 ms tasks)
+	 */
+	private static final int TASKS_PER_THREAD = 10;
+
+	/**
+	 * Simulates a queue served by the controlled pool, one period at a time
+	 */
+	private static class SimulatedLoad {
+		private final ThreadPoolTaskExecutorWithMdcPropagation executor;
+		private final AdaptivePoolSizer sizer;
+		private long now;
+		private long startedTasks;
+		private long queueWaitTime;
+		private int queue;
+
+		SimulatedLoad(ThreadPoolTaskExecutorWithMdcPropagation executor, AdaptivePoolSizer sizer) {
+			this.executor = executor;
+			this.sizer = sizer;
+			// baseline
+			sizer.adjust(now, startedTasks, queueWaitTime, queue, 0);
+		}
+
+		/**
+		 * Runs the given number of periods
+		 *
+		 * @param arrivals
+		 *            tasks submitted per period
+		 * @param bottleneck
+		 *            max tasks completed per period whatever the pool size
+		 * @return the pool sizes after each period
+		 */
+		int[] run(int periods, int arrivals, int bottleneck) {
+			int[] sizes = new int[periods];
+			for (int i = 0; i < periods; i++) {
+				int capacity = Math.min(bottleneck, executor.getCorePoolSize() * TASKS_PER_THREAD);
+				int backlog = queue + arrivals;
+				int served = Math.min(backlog, capacity);
+				// served tasks waited for the previous backlog to drain
+				queueWaitTime += served * (queue * PERIOD_NS / capacity);
+				startedTasks += served;
+				queue = backlog - served;
+				now += PERIOD_NS;
+				int active = (served + TASKS_PER_THREAD - 1) / TASKS_PER_THREAD;
+				sizes[i] = sizer.adjust(now, startedTasks, queueWaitTime, queue, active);
+			}
+			return sizes;
+		}
+	}
+
+	private static int max(int[] sizes) {
+		int max = 0;
+		for (int size : sizes) {
+			max = Math.max(max, size);
+		}
+		return max;
+	}
+
+	@Test
+	public void pool_size_should_converge_to_load() throws Exception {
+		ThreadPoolTaskExecutorWithMdcPropagation executor = new ThreadPoolTaskExecutorWithMdcPropagation(1, 1, 1, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		try {
+			SimulatedLoad load = new SimulatedLoad(executor, new AdaptivePoolSizer(executor, 1, 64));
+			// 400 tasks/s of 10 ms: requires 4 threads
+			int[] sizes = load.run(30, 40, Integer.MAX_VALUE);
+			// grows while the queue builds up, then shrinks back to the required size
+			assertThat(max(sizes)).isBetween(5, 10);
+			assertThat(sizes[sizes.length - 1]).isEqualTo(4);
+			assertThat(load.queue).isEqualTo(0);
+
+			// load stops: pool shrinks back
+			sizes = load.run(10, 0, Integer.MAX_VALUE);
+			assertThat(sizes[sizes.length - 1]).isEqualTo(1);
+			assertThat(executor.getCorePoolSize()).isEqualTo(1);
+			assertThat(executor.getMaximumPoolSize()).isEqualTo(1);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void pool_should_not_grow_when_bottleneck_is_elsewhere() throws Exception {
+		ThreadPoolTaskExecutorWithMdcPropagation executor = new ThreadPoolTaskExecutorWithMdcPropagation(1, 1, 1, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		try {
+			SimulatedLoad load = new SimulatedLoad(executor, new AdaptivePoolSizer(executor, 1, 64));
+			// 400 tasks/s, but a shared resource allows only 300 tasks/s
+			int[] sizes = load.run(30, 40, 30);
+			// queue grows forever, but the pool stays around the useful size
+			assertThat(load.queue).isGreaterThan(0);
+			assertThat(max(sizes)).isLessThanOrEqualTo(4);
+			assertThat(sizes[sizes.length - 1]).isBetween(3, 4);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void rejected_task_should_be_counted_and_logged_with_its_context() throws Exception {
+		final Semaphore release = new Semaphore(0);
+		RejectedExecutionHandlerWithMdc handler = new RejectedExecutionHandlerWithMdc();
+		ThreadPoolTaskExecutorWithMdcPropagation executor = new ThreadPoolTaskExecutorWithMdcPropagation(1, 1, 1, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), handler);
+		final AtomicReference<String> error = new AtomicReference<>();
+		ListAppender<ILoggingEvent> appender = new ListAppender<>();
+		Logger logger = (Logger) LoggerFactory.getLogger(RejectedExecutionHandlerWithMdc.class);
+		Level level = logger.getLevel();
+		logger.setLevel(Level.WARN);
+		appender.start();
+		logger.addAppender(appender);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					release.acquireUninterruptibly();
+				}
+			});
+			MDC.put("requestId", "rejected-request");
+			try {
+				executor.submit(new Runnable() {
+					@Override
+					public void run() {
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				error.set(e.getMessage());
+			}
+			assertThat(error.get()).isNotNull();
+			assertThat(handler.getRejectedTasks()).isEqualTo(1);
+			assertThat(MDC.get("requestId")).isEqualTo("rejected-request");
+			// the rejection is logged with the submitter's context
+			assertThat(appender.list).hasSize(1);
+			ILoggingEvent event = appender.list.get(0);
+			assertThat(event.getLevel()).isEqualTo(Level.WARN);
+			assertThat(event.getMDCPropertyMap()).containsEntry("requestId", "rejected-request");
+
+			// ... even when rejected from a thread running another request
+			Runnable task = new RunnableWrapperWithMdc(new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+			MDC.put("requestId", "other-request");
+			try {
+				handler.rejectedExecution(task, executor);
+			} catch (RejectedExecutionException e) {
+				error.set(e.getMessage());
+			}
+			assertThat(handler.getRejectedTasks()).isEqualTo(2);
+			assertThat(appender.list).hasSize(2);
+			assertThat(appender.list.get(1).getMDCPropertyMap()).containsEntry("requestId", "rejected-request");
+			assertThat(MDC.get("requestId")).isEqualTo("other-request");
+		} finally {
+			logger.detachAppender(appender);
+			logger.setLevel(level);
+			release.release();
+			executor.shutdown();
+			MDC.clear();
+		}
+	}
+}
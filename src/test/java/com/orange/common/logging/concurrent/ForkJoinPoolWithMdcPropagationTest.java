@@ -0,0 +1,152 @@
+package com.orange.common.logging.concurrent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+public class ForkJoinPoolWithMdcPropagationTest {
+	@After
+	public void clearMdc() {
+		MDC.clear();
+	}
+
+	/**
+	 * Sums a range, recording the requestId seen by each leaf
+	 */
+	private static class SumTask extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+		private final Set<String> seen;
+
+		SumTask(int from, int to, Set<String> seen) {
+			this.from = from;
+			this.to = to;
+			this.seen = seen;
+		}
+
+		@Override
+		protected Long compute() {
+			if (to - from <= 100) {
+				seen.add(String.valueOf(MDC.get("requestId")));
+				long sum = 0;
+				for (int i = from; i < to; i++) {
+					sum += i;
+				}
+				return sum;
+			}
+			int middle = (from + to) / 2;
+			ForkJoinTask<Long> left = MdcSupport.wrap(new SumTask(from, middle, seen)).fork();
+			long right = new SumTask(middle, to, seen).compute();
+			return left.join() + right;
+		}
+	}
+
+	@Test
+	public void mdc_context_should_be_propagated_to_forked_subtasks() {
+		ForkJoinPoolWithMdcPropagation pool = new ForkJoinPoolWithMdcPropagation(4);
+		try {
+			Set<String> seen = ConcurrentHashMap.newKeySet();
+			MDC.put("requestId", "fork-join");
+			assertThat(pool.invoke(new SumTask(0, 100000, seen))).isEqualTo(100000L * 99999 / 2);
+			assertThat(seen).containsOnly("fork-join");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Sets its depth in the MDC, then forks a subtask that returns the depth
+	 * it sees
+	 */
+	private static class DepthTask extends RecursiveTask<String> {
+		private static final long serialVersionUID = 1L;
+		private final int depth;
+
+		DepthTask(int depth) {
+			this.depth = depth;
+		}
+
+		@Override
+		protected String compute() {
+			if (depth == 3) {
+				return MDC.get("requestId") + "/" + MDC.get("depth");
+			}
+			MDC.put("depth", String.valueOf(depth));
+			return MdcSupport.wrap(new DepthTask(depth + 1)).fork().join();
+		}
+	}
+
+	@Test
+	public void mdc_changes_should_be_propagated_to_forked_subtasks() {
+		ForkJoinPoolWithMdcPropagation pool = new ForkJoinPoolWithMdcPropagation(4);
+		try {
+			MDC.put("requestId", "fork-join");
+			// the leaf sees the context of its parent at fork time
+			assertThat(pool.invoke(new DepthTask(0))).isEqualTo("fork-join/2");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void mdc_context_should_be_propagated_to_submitted_callables() throws Exception {
+		ForkJoinPoolWithMdcPropagation pool = new ForkJoinPoolWithMdcPropagation(2);
+		try {
+			MDC.put("requestId", "callable");
+			assertThat(pool.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return MDC.get("requestId");
+				}
+			}).get()).isEqualTo("callable");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void mdc_context_should_be_propagated_to_parallel_streams() throws Exception {
+		MDC.put("requestId", "stream");
+		Set<String> seen = MdcSupport.callInParallel(4, new Callable<Set<String>>() {
+			@Override
+			public Set<String> call() {
+				return IntStream.range(0, 10000).parallel().mapToObj(i -> String.valueOf(MDC.get("requestId"))).collect(Collectors.toSet());
+			}
+		});
+		assertThat(seen).containsOnly("stream");
+		// caller context untouched
+		assertThat(MDC.get("requestId")).isEqualTo("stream");
+	}
+
+	@Test
+	public void parallel_pool_should_be_reusable() throws Exception {
+		MDC.put("requestId", "batch");
+		ForkJoinPool pool = MdcSupport.newParallelPool(4);
+		try {
+			for (int i = 0; i < 3; i++) {
+				Set<String> seen = MdcSupport.callInParallel(pool, new Callable<Set<String>>() {
+					@Override
+					public Set<String> call() {
+						return IntStream.range(0, 10000).parallel().mapToObj(i -> String.valueOf(MDC.get("requestId"))).collect(Collectors.toSet());
+					}
+				});
+				assertThat(seen).containsOnly("batch");
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertThat(MDC.get("requestId")).isEqualTo("batch");
+	}
+}
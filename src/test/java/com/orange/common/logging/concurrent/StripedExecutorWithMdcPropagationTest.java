@@ -0,0 +1,134 @@
+package com.orange.common.logging.concurrent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+public class StripedExecutorWithMdcPropagationTest {
+	private final StripedExecutorWithMdcPropagation executor = new StripedExecutorWithMdcPropagation("sessionId", 4);
+
+	@After
+	public void tearDown() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.SECONDS);
+		MDC.clear();
+	}
+
+	@Test
+	public void tasks_with_same_key_should_run_in_order_on_same_thread() throws Exception {
+		// executed[session] = sequence numbers in execution order; never
+		// accessed concurrently for a given session (no locking)
+		final Map<String, List<Integer>> executed = new HashMap<>();
+		final Map<String, List<String>> threads = new HashMap<>();
+		for (int s = 0; s < 16; s++) {
+			executed.put("session" + s, new ArrayList<Integer>());
+			threads.put("session" + s, Collections.synchronizedList(new ArrayList<String>()));
+		}
+
+		// several producers, each submitting its own sessions
+		ExecutorService producers = Executors.newFixedThreadPool(4);
+		List<Future<?>> done = new ArrayList<>();
+		for (int p = 0; p < 4; p++) {
+			final int producer = p;
+			done.add(producers.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i = 0; i < 500; i++) {
+						for (int s = producer; s < 16; s += 4) {
+							MDC.put("sessionId", "session" + s);
+							final int seq = i;
+							executor.execute(new Runnable() {
+								@Override
+								public void run() {
+									String session = MDC.get("sessionId");
+									executed.get(session).add(seq);
+									threads.get(session).add(Thread.currentThread().getName());
+								}
+							});
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : done) {
+			f.get();
+		}
+		producers.shutdown();
+		executor.shutdown();
+		assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+
+		for (int s = 0; s < 16; s++) {
+			List<Integer> sequence = executed.get("session" + s);
+			assertThat(sequence).hasSize(500);
+			for (int i = 0; i < sequence.size(); i++) {
+				assertThat(sequence.get(i)).isEqualTo(i);
+			}
+			assertThat(new HashSet<>(threads.get("session" + s))).hasSize(1);
+		}
+	}
+
+	@Test
+	public void tasks_without_key_should_be_executed_with_context() throws Exception {
+		MDC.put("requestId", "no-session");
+		List<Future<String>> futures = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			futures.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return MDC.get("requestId");
+				}
+			}));
+		}
+		for (Future<String> f : futures) {
+			assertThat(f.get()).isEqualTo("no-session");
+		}
+	}
+
+	@Test
+	public void tasks_should_be_checked_and_charged_before_get_returns() throws Exception {
+		MDC.put("sessionId", "s1");
+		MdcLeakDetector detector = MdcLeakDetector.install(0);
+		RequestTiming timing = RequestTiming.start();
+		try {
+			for (int i = 1; i <= 100; i++) {
+				executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						MDC.put("leak", "value");
+					}
+				}).get();
+				// no race with the task completion
+				assertThat(detector.getCheckedTasks()).isEqualTo(i);
+				assertThat(detector.getLeakingTasks()).isEqualTo(i);
+				assertThat(timing.getTasks()).isEqualTo(i);
+			}
+		} finally {
+			timing.stop();
+			MdcLeakDetector.uninstall();
+		}
+	}
+
+	@Test
+	public void stripe_index_should_be_stable_and_in_range() {
+		for (int i = 0; i < 1000; i++) {
+			int index = executor.getStripeIndex("key" + i);
+			assertThat(index).isBetween(0, 3);
+			assertThat(executor.getStripeIndex("key" + i)).isEqualTo(index);
+		}
+	}
+}
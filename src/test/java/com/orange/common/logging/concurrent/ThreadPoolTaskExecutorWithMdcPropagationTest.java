@@ -1,12 +1,19 @@
 package com.orange.common.logging.concurrent;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
@@ -42,4 +49,186 @@ public class ThreadPoolTaskExecutorWithMdcPropagationTest {
 			Assert.fail("Expected tasks not returned: "+expectedTasks);
 		}
 	}
+
+	@Test
+	public void worker_mdc_should_be_restored_after_task() throws Exception {
+		ExecutorService executorService = new ThreadPoolTaskExecutorWithMdcPropagation(1, 1, 50, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		try {
+			MDC.put("requestId", "leaking");
+			executorService.submit(new Runnable() {
+				@Override
+				public void run() {
+					MDC.put("leak", "value");
+				}
+			}).get();
+			MDC.clear();
+			// same (single) worker thread: nothing shall remain from the previous task
+			assertThat(executorService.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return MDC.get("requestId") + "/" + MDC.get("leak");
+				}
+			}).get()).isEqualTo("null/null");
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	@Test
+	public void caller_mdc_should_be_restored_with_caller_runs_policy() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executorService = new ThreadPoolTaskExecutorWithMdcPropagation(1, 1, 50, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+			// occupy the single worker
+			executorService.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			MDC.put("requestId", "caller");
+			final String callerThread = Thread.currentThread().getName();
+			// rejected: run by the caller thread
+			Future<String> future = executorService.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					MDC.put("requestId", "overwritten");
+					return Thread.currentThread().getName();
+				}
+			});
+			assertThat(future.get()).isEqualTo(callerThread);
+			assertThat(MDC.get("requestId")).isEqualTo("caller");
+		} finally {
+			release.countDown();
+			executorService.shutdown();
+			MDC.clear();
+		}
+	}
+
+	@Test
+	public void leak_detector_should_count_leaking_tasks() throws Exception {
+		MdcLeakDetector detector = MdcLeakDetector.install(10);
+		try {
+			MDC.put("requestId", "r1");
+			MdcSupport.wrap(new Runnable() {
+				@Override
+				public void run() {
+					MDC.put("leak", "value");
+				}
+			}).run();
+			MdcSupport.wrap(new Runnable() {
+				@Override
+				public void run() {
+					MDC.get("requestId");
+				}
+			}).run();
+			assertThat(detector.getCheckedTasks()).isEqualTo(2);
+			assertThat(detector.getLeakingTasks()).isEqualTo(1);
+			assertThat(detector.getSamples()).hasSize(1);
+			assertThat(detector.getSamples().get(0)).endsWith("+leak=value");
+		} finally {
+			MdcLeakDetector.uninstall();
+			MDC.clear();
+		}
+	}
+
+	@Test
+	public void leak_detector_should_accept_negative_samples() throws Exception {
+		MdcLeakDetector detector = MdcLeakDetector.install(-1);
+		try {
+			MdcSupport.wrap(new Runnable() {
+				@Override
+				public void run() {
+					MDC.put("leak", "value");
+				}
+			}).run();
+			assertThat(detector.getLeakingTasks()).isEqualTo(1);
+			assertThat(detector.getSamples()).isEmpty();
+		} finally {
+			MdcLeakDetector.uninstall();
+			MDC.clear();
+		}
+	}
+
+	@Test
+	public void queue_and_execution_time_should_be_charged_to_request() throws Exception {
+		ExecutorService executorService = new ThreadPoolTaskExecutorWithMdcPropagation(1, 1, 50, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		RequestTiming timing = RequestTiming.start();
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				futures.add(executorService.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						Thread.sleep(50);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+			timing.stop();
+			assertThat(RequestTiming.current()).isNull();
+			// each task charged once
+			assertThat(timing.getTasks()).isEqualTo(3);
+			assertThat(timing.getExecution(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(150);
+			// second task waits for the first one, third task for both
+			assertThat(timing.getQueued(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(140);
+			assertThat(timing.getTotal(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(150);
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	@Test
+	public void only_allowed_keys_should_be_propagated() throws Exception {
+		ThreadPoolTaskExecutorWithMdcPropagation executorService = new ThreadPoolTaskExecutorWithMdcPropagation(1, 1, 50, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		executorService.setPropagationPolicy(MdcPropagationPolicy.allow("requestId", "userId").withMaxValueLength(16));
+		try {
+			MDC.put("requestId", "req1");
+			MDC.put("userId", "a-very-long-user-id-value");
+			MDC.put("framework.noise", "noise");
+			Map<String, String> propagated = executorService.submit(new Callable<Map<String, String>>() {
+				@Override
+				public Map<String, String> call() {
+					return MDC.getCopyOfContextMap();
+				}
+			}).get();
+			// long values are truncated
+			assertThat(propagated).containsOnly(entry("requestId", "req1"), entry("userId", "a-very-long-user"));
+		} finally {
+			executorService.shutdown();
+			MDC.clear();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negative_max_value_length_should_be_rejected() {
+		MdcPropagationPolicy.ALL.withMaxValueLength(-1);
+	}
+
+	@Test
+	public void denied_keys_should_not_be_propagated() throws Exception {
+		MDC.put("requestId", "req1");
+		MDC.put("framework.noise", "noise");
+		try {
+			Callable<Map<String, String>> task = MdcSupport.wrap(new Callable<Map<String, String>>() {
+				@Override
+				public Map<String, String> call() {
+					return MDC.getCopyOfContextMap();
+				}
+			}, MdcPropagationPolicy.deny("framework.noise"));
+			MDC.clear();
+			assertThat(task.call()).containsOnly(entry("requestId", "req1"));
+			assertThat(MDC.getCopyOfContextMap()).isNullOrEmpty();
+		} finally {
+			MDC.clear();
+		}
+	}
 }
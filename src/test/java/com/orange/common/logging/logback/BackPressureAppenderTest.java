@@ -0,0 +1,120 @@
+package com.orange.common.logging.logback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.core.util.Duration;
+
+public class BackPressureAppenderTest {
+	private final LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+	private final Logger logger = context.getLogger("backpressure.test");
+	private final SlowAppender slow = new SlowAppender();
+	private final BackPressureAppender appender = new BackPressureAppender();
+
+	/**
+	 * Simulates a slow disk
+	 */
+	private static class SlowAppender extends AppenderBase<ILoggingEvent> {
+		private final List<ILoggingEvent> events = new CopyOnWriteArrayList<>();
+
+		@Override
+		protected void append(ILoggingEvent event) {
+			try {
+				Thread.sleep(2);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			events.add(event);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		slow.setContext(context);
+		slow.start();
+		appender.setContext(context);
+		appender.setName("test");
+		appender.setQueueSize(64);
+		appender.setMaxWriteLatency(Duration.buildByMilliseconds(1));
+		appender.setSummaryPeriod(null);
+		appender.addAppender(slow);
+		appender.start();
+	}
+
+	@After
+	public void tearDown() {
+		appender.stop();
+	}
+
+	private void log(Level level, String message) {
+		appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, level, message, null, null));
+	}
+
+	private int errors() {
+		int errors = 0;
+		for (ILoggingEvent event : slow.events) {
+			if (event.getLevel() == Level.ERROR) {
+				errors++;
+			}
+		}
+		return errors;
+	}
+
+	@Test
+	public void low_level_events_should_be_shed_and_errors_kept() throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < 1000; i++) {
+			log(i % 100 == 0 ? Level.ERROR : Level.DEBUG, "event " + i);
+		}
+		long elapsed = System.nanoTime() - start;
+		// the logging thread was not blocked by the slow appender (2ms per event)
+		assertThat(TimeUnit.NANOSECONDS.toMillis(elapsed)).isLessThan(1000);
+		assertThat(appender.getDroppedEvents()).isGreaterThan(0);
+
+		// wait for the queue to drain
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((appender.getQueueDepth() > 0 || errors() < 10) && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(errors()).isEqualTo(10);
+		assertThat(appender.getQueueDepth()).isEqualTo(0);
+
+		// pressure is gone: debug events are written again
+		appender.summary();
+		log(Level.DEBUG, "recovered");
+		deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!lastMessage().equals("recovered") && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(lastMessage()).isEqualTo("recovered");
+		assertThat(appender.getDroppedEvents()).isEqualTo(0);
+
+		// level changes are reported at most once per period
+		int reported = 0;
+		for (Status status : context.getStatusManager().getCopyOfStatusList()) {
+			if (status.getOrigin() == appender && status.getMessage().startsWith("Back-pressure")) {
+				reported++;
+			}
+		}
+		assertThat(reported).isEqualTo(1);
+	}
+
+	private String lastMessage() {
+		return slow.events.isEmpty() ? "" : slow.events.get(slow.events.size() - 1).getMessage();
+	}
+}
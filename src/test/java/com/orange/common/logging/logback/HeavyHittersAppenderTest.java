@@ -0,0 +1,112 @@
+package com.orange.common.logging.logback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+
+public class HeavyHittersAppenderTest {
+	private final LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	private final CollectingAppender collecting = new CollectingAppender();
+	private final HeavyHittersAppender appender = new HeavyHittersAppender();
+	private ObjectName objectName;
+
+	private static class CollectingAppender extends AppenderBase<ILoggingEvent> {
+		private final List<ILoggingEvent> events = new CopyOnWriteArrayList<>();
+
+		@Override
+		protected void append(ILoggingEvent event) {
+			events.add(event);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		collecting.setContext(context);
+		collecting.start();
+		appender.setContext(context);
+		appender.setName("hh-test");
+		appender.setTopK(2);
+		appender.addAppender(collecting);
+		appender.start();
+		objectName = new ObjectName("com.orange.common.logging:type=HeavyHitters,name=" + ObjectName.quote("hh-test"));
+	}
+
+	@After
+	public void tearDown() {
+		appender.stop();
+	}
+
+	private void log(String loggerName, String userId, String message) {
+		LoggingEvent event = new LoggingEvent(Logger.class.getName(), context.getLogger(loggerName), Level.INFO, message, null, null);
+		event.setMDCPropertyMap(userId == null ? Collections.<String, String> emptyMap() : Collections.singletonMap("userId", userId));
+		appender.doAppend(event);
+	}
+
+	@Test
+	public void top_producers_should_be_exposed_through_jmx() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			log("com.acme.Chatty", "john", "0123456789");
+		}
+		for (int i = 0; i < 10; i++) {
+			log("com.acme.Quiet", "jane", "0123456789");
+		}
+		log("com.acme.Quiet", null, "no user");
+
+		// events are forwarded
+		assertThat(collecting.events).hasSize(111);
+
+		assertThat(server.isRegistered(objectName)).isTrue();
+		assertThat(server.getAttribute(objectName, "TotalEvents")).isEqualTo(111L);
+		assertThat((Long) server.getAttribute(objectName, "TotalBytes")).isGreaterThan(111L * 10);
+		CompositeData[] users = (CompositeData[]) server.getAttribute(objectName, "TopMdcValues");
+		assertThat(users).hasSize(2);
+		assertThat(users[0].get("key")).isEqualTo("john");
+		assertThat(users[0].get("events")).isEqualTo(100L);
+		assertThat(users[1].get("key")).isEqualTo("jane");
+		CompositeData[] loggers = (CompositeData[]) server.getAttribute(objectName, "TopLoggers");
+		assertThat(loggers[0].get("key")).isEqualTo("com.acme.Chatty");
+
+		server.invoke(objectName, "reset", null, null);
+		assertThat(appender.getTotalEvents()).isEqualTo(0);
+		assertThat(appender.getTopMdcValues()).isEmpty();
+	}
+
+	@Test
+	public void stop_should_only_unregister_own_mbean() throws Exception {
+		HeavyHittersAppender duplicate = new HeavyHittersAppender();
+		duplicate.setContext(context);
+		duplicate.setName("hh-test");
+		duplicate.start();
+		assertThat(duplicate.isStarted()).isTrue();
+
+		// stopping the duplicate leaves the first appender's MBean alone
+		duplicate.stop();
+		assertThat(duplicate.isStarted()).isFalse();
+		assertThat(server.isRegistered(objectName)).isTrue();
+
+		appender.stop();
+		assertThat(server.isRegistered(objectName)).isFalse();
+		// idempotent
+		appender.stop();
+	}
+}
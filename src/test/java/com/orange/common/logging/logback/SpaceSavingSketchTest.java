@@ -0,0 +1,74 @@
+package com.orange.common.logging.logback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SpaceSavingSketchTest {
+	@Test
+	public void heavy_hitters_should_be_retained() {
+		// 4 stripes of 16 counters
+		SpaceSavingSketch sketch = new SpaceSavingSketch(64, 4);
+		Map<String, Long> exactBytes = new HashMap<>();
+		Map<String, Long> exactEvents = new HashMap<>();
+		long total = 0;
+		Random random = new Random(0);
+		for (int i = 0; i < 100000; i++) {
+			String key;
+			long bytes;
+			if (i % 20 < 5) {
+				// 5 noisy tenants: 5% of events each, 10 times bigger
+				key = "noisy" + i % 20;
+				bytes = 1000;
+			} else {
+				// long tail of distinct keys
+				key = "user" + random.nextInt(10000);
+				bytes = 100;
+			}
+			sketch.add(key, bytes);
+			exactBytes.put(key, exactBytes.getOrDefault(key, 0L) + bytes);
+			exactEvents.put(key, exactEvents.getOrDefault(key, 0L) + 1);
+			total += bytes;
+		}
+
+		List<SpaceSavingSketch.Entry> all = sketch.top(64);
+		// Space-Saving guarantees: counts are over-estimated by at most error
+		for (SpaceSavingSketch.Entry entry : all) {
+			long exact = exactBytes.get(entry.getKey());
+			assertThat(entry.getBytes()).as(entry.getKey()).isGreaterThanOrEqualTo(exact);
+			assertThat(entry.getBytes() - entry.getError()).as(entry.getKey()).isLessThanOrEqualTo(exact);
+			assertThat(entry.getEvents()).as(entry.getKey()).isGreaterThanOrEqualTo(exactEvents.get(entry.getKey()));
+		}
+		// every key above N / (counters per stripe) is reported
+		Set<String> reported = new HashSet<>();
+		for (SpaceSavingSketch.Entry entry : all) {
+			reported.add(entry.getKey());
+		}
+		Set<String> heavy = new HashSet<>();
+		for (Map.Entry<String, Long> exact : exactBytes.entrySet()) {
+			if (exact.getValue() > total / 16) {
+				heavy.add(exact.getKey());
+			}
+		}
+		assertThat(heavy).containsOnly("noisy0", "noisy1", "noisy2", "noisy3", "noisy4");
+		assertThat(reported).containsAll(heavy);
+
+		List<SpaceSavingSketch.Entry> top = sketch.top(5);
+		assertThat(top).extracting("key").containsOnly("noisy0", "noisy1", "noisy2", "noisy3", "noisy4");
+	}
+
+	@Test
+	public void reset_should_clear_counters() {
+		SpaceSavingSketch sketch = new SpaceSavingSketch(8, 1);
+		sketch.add("a", 10);
+		sketch.reset();
+		assertThat(sketch.top(10)).isEmpty();
+	}
+}
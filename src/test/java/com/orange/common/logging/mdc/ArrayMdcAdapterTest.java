@@ -0,0 +1,205 @@
+package com.orange.common.logging.mdc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.spi.MDCAdapter;
+
+import com.orange.common.logging.concurrent.MdcLeakDetector;
+import com.orange.common.logging.concurrent.MdcPropagationPolicy;
+import com.orange.common.logging.concurrent.MdcSupport;
+import com.orange.common.logging.concurrent.StripedExecutorWithMdcPropagation;
+import com.orange.common.logging.concurrent.ThreadPoolTaskExecutorWithMdcPropagation;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class ArrayMdcAdapterTest {
+	private static MDCAdapter previous;
+
+	@BeforeClass
+	public static void install() {
+		previous = MDC.getMDCAdapter();
+		ArrayMdcAdapter.install();
+	}
+
+	@AfterClass
+	public static void uninstall() {
+		MDC.clear();
+		ArrayMdcAdapter.setMdcAdapter(previous);
+	}
+
+	@Test
+	public void snapshots_should_be_isolated() {
+		MDC.clear();
+		MDC.put("requestId", "r1");
+		MDC.put("userId", "u1");
+		Map<String, String> snapshot = MDC.getCopyOfContextMap();
+
+		MDC.put("requestId", "r2");
+		MDC.remove("userId");
+		MDC.put("sessionId", "s1");
+
+		assertThat(snapshot).hasSize(2).containsEntry("requestId", "r1").containsEntry("userId", "u1");
+		assertThat(MDC.getCopyOfContextMap()).hasSize(2).containsEntry("requestId", "r2").containsEntry("sessionId", "s1");
+
+		// modifying the copy shall not affect the context
+		snapshot.put("requestId", "r3");
+		assertThat(MDC.get("requestId")).isEqualTo("r2");
+
+		MDC.setContextMap(snapshot);
+		assertThat(MDC.get("requestId")).isEqualTo("r3");
+		assertThat(MDC.get("sessionId")).isNull();
+		assertThat(MDC.get("userId")).isEqualTo("u1");
+	}
+
+	@Test
+	public void map_should_grow_and_shrink() {
+		ArrayMdcMap map = new ArrayMdcMap();
+		for (int i = 0; i < 20; i++) {
+			map.put("key" + i, "value" + i);
+		}
+		assertThat(map).hasSize(20).containsEntry("key19", "value19");
+		for (int i = 0; i < 20; i += 2) {
+			map.remove("key" + i);
+		}
+		assertThat(map).hasSize(10).doesNotContainKey("key0").containsEntry("key1", "value1");
+		map.entrySet().clear();
+		assertThat(map).isEmpty();
+	}
+
+	@Test
+	public void logback_events_should_see_mdc() {
+		MDC.clear();
+		MDC.put("requestId", "r1");
+		Logger logger = (Logger) LoggerFactory.getLogger(ArrayMdcAdapterTest.class);
+		LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "message", null, null);
+		// what an appender does
+		Map<String, String> mdc = event.getMDCPropertyMap();
+		MDC.put("requestId", "r2");
+		assertThat(mdc).containsEntry("requestId", "r1");
+		assertThat(event.getMDCPropertyMap()).containsEntry("requestId", "r1");
+	}
+
+	@Test
+	public void mdc_should_be_propagated_to_executor() throws Exception {
+		ExecutorService executor = new ThreadPoolTaskExecutorWithMdcPropagation(1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+		try {
+			MDC.clear();
+			MDC.put("requestId", "r1");
+			assertThat(executor.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return MDC.get("requestId");
+				}
+			}).get()).isEqualTo("r1");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void policies_should_filter_adapter_context() {
+		MDC.clear();
+		MDC.put("requestId", "r1");
+		MDC.put("userId", "a-very-long-user-id-value");
+		MDC.put("framework.noise", "noise");
+
+		Map<String, String> allowed = MdcPropagationPolicy.allow("userId", "requestId").withMaxValueLength(16).capture();
+		assertThat(allowed).isInstanceOf(ArrayMdcMap.class).hasSize(2).containsEntry("requestId", "r1").containsEntry("userId", "a-very-long-user");
+		Map<String, String> denied = MdcPropagationPolicy.deny("framework.noise").capture();
+		assertThat(denied).hasSize(2).containsEntry("requestId", "r1").containsEntry("userId", "a-very-long-user-id-value");
+		assertThat(MdcPropagationPolicy.allow("sessionId").capture()).isNull();
+		MDC.clear();
+	}
+
+	@Test
+	public void lazy_value_should_be_computed_once_when_read() {
+		MDC.clear();
+		final AtomicInteger computations = new AtomicInteger();
+		LazyMdcValue value = new LazyMdcValue() {
+			@Override
+			protected String compute() {
+				computations.incrementAndGet();
+				return "hashed";
+			}
+		};
+		LazyMdcValue.put("userId", value);
+		MDC.put("requestId", "r1");
+		Map<String, String> snapshot = MDC.getCopyOfContextMap();
+		MDC.remove("userId");
+		// never read
+		assertThat(computations.get()).isEqualTo(0);
+
+		// read from a snapshot (as an encoder would), then again
+		assertThat(snapshot.get("userId")).isEqualTo("hashed");
+		assertThat(snapshot).containsEntry("userId", "hashed");
+		assertThat(computations.get()).isEqualTo(1);
+		assertThat(value.isComputed()).isTrue();
+		MDC.clear();
+	}
+
+	@Test
+	public void lazy_value_should_not_be_computed_by_propagation() throws Exception {
+		MDC.clear();
+		final AtomicInteger computations = new AtomicInteger();
+		LazyMdcValue.put("userId", new LazyMdcValue() {
+			@Override
+			protected String compute() {
+				computations.incrementAndGet();
+				return "hashed";
+			}
+		});
+		MDC.put("requestId", "r1");
+		MDC.put("framework.noise", "noise");
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				MDC.get("requestId");
+			}
+		};
+		MdcPropagationPolicy policy = MdcPropagationPolicy.deny("framework.noise").withMaxValueLength(16);
+		ThreadPoolTaskExecutorWithMdcPropagation pool = new ThreadPoolTaskExecutorWithMdcPropagation(1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+		pool.setPropagationPolicy(policy);
+		StripedExecutorWithMdcPropagation striped = new StripedExecutorWithMdcPropagation("requestId", 2);
+		striped.setPropagationPolicy(MdcPropagationPolicy.allow("requestId", "userId"));
+		MdcLeakDetector detector = MdcLeakDetector.install(10);
+		try {
+			MdcSupport.wrap(task, policy).run();
+			MdcSupport.wrap(task).run();
+			pool.submit(task).get();
+			striped.submit(task).get();
+			striped.submit(task).get();
+			assertThat(detector.getCheckedTasks()).isEqualTo(5);
+			assertThat(detector.getLeakingTasks()).isEqualTo(0);
+			// never logged: never computed
+			assertThat(computations.get()).isEqualTo(0);
+
+			// propagated lazily
+			assertThat(pool.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return MDC.get("userId");
+				}
+			}).get()).isEqualTo("hashed");
+			assertThat(computations.get()).isEqualTo(1);
+		} finally {
+			MdcLeakDetector.uninstall();
+			pool.shutdown();
+			striped.shutdown();
+			MDC.clear();
+		}
+	}
+}
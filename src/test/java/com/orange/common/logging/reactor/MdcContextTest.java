@@ -0,0 +1,122 @@
+package com.orange.common.logging.reactor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import com.orange.common.logging.concurrent.MdcPropagationPolicy;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Signal;
+import reactor.core.scheduler.Schedulers;
+
+public class MdcContextTest {
+	private static final Function<Integer, String> READ_REQUEST_ID = new Function<Integer, String>() {
+		@Override
+		public String apply(Integer i) {
+			return String.valueOf(MDC.get("requestId"));
+		}
+	};
+
+	@After
+	public void tearDown() {
+		MdcContext.uninstallHook();
+		MDC.clear();
+	}
+
+	private static Flux<String> requestFlux(boolean operators) {
+		return Flux.range(0, 100).publishOn(Schedulers.parallel()).map(READ_REQUEST_ID).publishOn(Schedulers.elastic()).map(new Function<String, String>() {
+			@Override
+			public String apply(String s) {
+				return s + "/" + MDC.get("requestId");
+			}
+		}).subscriberContext(MdcContext.captureOnSubscribe(MdcPropagationPolicy.allow("requestId"), operators));
+	}
+
+	private static CompletableFuture<List<String>> subscribe(Flux<String> flux, String requestId) {
+		MDC.put("requestId", requestId);
+		MDC.put("noise", "large value");
+		try {
+			return flux.collectList().toFuture();
+		} finally {
+			MDC.clear();
+		}
+	}
+
+	@Test
+	public void hook_should_install_mdc_in_operators() throws Exception {
+		MdcContext.installHook();
+		// assembled once (after the hook), subscribed by each request
+		Flux<String> flux = requestFlux(true);
+		CompletableFuture<List<String>> r1 = subscribe(flux, "r1");
+		CompletableFuture<List<String>> r2 = subscribe(flux, "r2");
+		// both operators see the request that subscribed
+		assertThat(r1.get()).hasSize(100).containsOnly("r1/r1");
+		assertThat(r2.get()).hasSize(100).containsOnly("r2/r2");
+
+		// chains that don't opt in are not decorated
+		assertThat(subscribe(requestFlux(false), "r3").get()).hasSize(100).containsOnly("null/null");
+
+		// worker threads are left clean
+		List<String> clean = Flux.range(0, 10).publishOn(Schedulers.parallel()).map(READ_REQUEST_ID).collectList().block();
+		assertThat(clean).containsOnly("null");
+	}
+
+	@Test
+	public void cached_publisher_should_see_each_subscriber_mdc() {
+		final List<String> logged = new CopyOnWriteArrayList<>();
+		MDC.put("requestId", "assembly");
+		Consumer<Signal<String>> log = MdcContext.onNext(new Consumer<String>() {
+			@Override
+			public void accept(String value) {
+				logged.add(value + "/" + MDC.get("requestId"));
+			}
+		});
+		Flux<String> cached = Flux.just("a", "b").cache();
+		Flux<String> onSubscribe = cached.doOnEach(log).subscriberContext(MdcContext.captureOnSubscribe());
+		Flux<String> onAssembly = cached.doOnEach(log).subscriberContext(MdcContext.capture());
+
+		for (String requestId : Arrays.asList("r1", "r2")) {
+			MDC.put("requestId", requestId);
+			onSubscribe.blockLast();
+		}
+		assertThat(logged).containsExactly("a/r1", "b/r1", "a/r2", "b/r2");
+
+		// captured once, at assembly time
+		logged.clear();
+		onAssembly.blockLast();
+		assertThat(logged).containsExactly("a/assembly", "b/assembly");
+	}
+
+	@Test
+	public void do_on_each_should_install_mdc_only_in_callback() {
+		final List<String> logged = new CopyOnWriteArrayList<>();
+		final List<Map<String, String>> contexts = new CopyOnWriteArrayList<>();
+		MDC.put("requestId", "r3");
+		Flux<String> flux = Flux.range(0, 10).publishOn(Schedulers.parallel()).map(READ_REQUEST_ID)
+				.doOnEach(MdcContext.<String> onNext(new Consumer<String>() {
+					@Override
+					public void accept(String value) {
+						logged.add(value + "/" + MDC.get("requestId"));
+						contexts.add(MDC.getCopyOfContextMap());
+					}
+				})).subscriberContext(MdcContext.captureOnSubscribe());
+		List<String> values = flux.collectList().block();
+		MDC.clear();
+
+		// no hook: operators don't see the MDC, the callback does
+		assertThat(values).containsOnly("null");
+		assertThat(logged).hasSize(10).containsOnly("null/r3");
+		assertThat(contexts.get(0)).containsEntry("requestId", "r3");
+	}
+}
@@ -0,0 +1,102 @@
+package com.orange.common.logging.stacktrace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class StackHashDictionaryTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void stack_traces_should_survive_reopening() throws IOException {
+		File dir = folder.newFolder("stacks");
+		StackHashDictionary dictionary = StackHashDictionary.open(dir);
+		assertThat(dictionary.put("07e70d1e", "stack 1")).isTrue();
+		assertThat(dictionary.put("07e70d1e", "stack 1 again")).isFalse();
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			big.append("\tat com.xyz.MyApp.method").append(i).append("(MyApp.java:").append(i).append(")\n");
+		}
+		// larger than the initial mapping
+		assertThat(dictionary.put("d6db326f", big.toString())).isTrue();
+		dictionary.close();
+
+		try (StackHashDictionary readOnly = StackHashDictionary.openReadOnly(dir)) {
+			assertThat(readOnly.hashes()).containsExactly("07e70d1e", "d6db326f");
+			assertThat(readOnly.get("07e70d1e")).isEqualTo("stack 1");
+			assertThat(readOnly.get("d6db326f")).isEqualTo(big.toString());
+			assertThat(readOnly.get("393b506a")).isNull();
+		}
+
+		dictionary = StackHashDictionary.open(dir);
+		assertThat(dictionary.contains("07e70d1e")).isTrue();
+		assertThat(dictionary.put("393b506a", "stack 3")).isTrue();
+		assertThat(dictionary.get("393b506a")).isEqualTo("stack 3");
+		assertThat(dictionary.size()).isEqualTo(3);
+		dictionary.close();
+	}
+
+	@Test
+	public void shared_dictionary_should_be_closed_by_last_user() throws IOException {
+		File dir = folder.newFolder("shared");
+		StackHashDictionary first = StackHashDictionary.open(dir);
+		StackHashDictionary second = StackHashDictionary.open(dir);
+		assertThat(second).isSameAs(first);
+
+		first.close();
+		// still usable by the other user
+		assertThat(second.put("07e70d1e", "stack 1")).isTrue();
+		assertThat(StackHashDictionary.open(dir)).isSameAs(second);
+		second.close();
+		second.close();
+
+		// files released: a new instance is opened
+		StackHashDictionary reopened = StackHashDictionary.open(dir);
+		assertThat(reopened).isNotSameAs(first);
+		assertThat(reopened.get("07e70d1e")).isEqualTo("stack 1");
+		reopened.close();
+		// extra close is ignored
+		reopened.close();
+	}
+
+	@Test
+	public void converter_should_render_known_stack_traces_as_reference() throws IOException {
+		File dir = folder.newFolder("converter");
+		StackHashDictionaryConverter converter = new StackHashDictionaryConverter();
+		converter.setContext((LoggerContext) LoggerFactory.getILoggerFactory());
+		converter.setDictionary(dir.getPath());
+		converter.start();
+
+		Logger logger = (Logger) LoggerFactory.getLogger(StackHashDictionaryTest.class);
+		String first = null;
+		for (int i = 0; i < 2; i++) {
+			Exception error = new IllegalStateException("failure #" + i);
+			String rendered = converter.convert(new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "error", error, null));
+			if (i == 0) {
+				first = rendered;
+				assertThat(rendered).contains("failure #0").contains("\tat ");
+			} else {
+				assertThat(rendered).contains("IllegalStateException: failure #1").contains("[stack trace in ").doesNotContain("\tat ");
+			}
+		}
+		converter.stop();
+
+		try (StackHashDictionary readOnly = StackHashDictionary.openReadOnly(dir)) {
+			assertThat(readOnly.size()).isEqualTo(1);
+			assertThat(readOnly.get(readOnly.hashes().iterator().next())).isEqualTo(first);
+		}
+		StackHashDictionary.open(dir).close();
+	}
+}
@@ -0,0 +1,291 @@
+package com.orange.common.logging.web;
+
+import static com.orange.common.logging.Stubs.stub;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+
+public class AccessLogFilterTest {
+	private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+	private Logger logger;
+
+	@Before
+	public void setUp() {
+		logger = (Logger) LoggerFactory.getLogger("access.test");
+		logger.setLevel(Level.INFO);
+		logger.setAdditive(false);
+		appender.start();
+		logger.addAppender(appender);
+	}
+
+	@After
+	public void tearDown() {
+		logger.detachAppender(appender);
+		MDC.clear();
+	}
+
+	@Test
+	public void access_line_should_contain_request_and_mdc_fields() throws Exception {
+		AccessLogFilter filter = new AccessLogFilter();
+		filter.setLoggerName("access.test");
+		filter.setCountBytes(true);
+
+		final String uriTemplateAttribute = filter.getUriTemplateAttribute();
+		HttpServletRequest request = new HttpServletRequestWrapper(stub(HttpServletRequest.class)) {
+			@Override
+			public String getMethod() {
+				return "GET";
+			}
+
+			@Override
+			public String getRequestURI() {
+				return "/users/42";
+			}
+
+			@Override
+			public Object getAttribute(String name) {
+				return uriTemplateAttribute.equals(name) ? "/users/{id}" : null;
+			}
+
+			@Override
+			public boolean isAsyncStarted() {
+				return false;
+			}
+		};
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		HttpServletResponse response = new StubContainerResponse(body);
+
+		MDC.put("requestId", "abc123");
+		MDC.put("userId", "john doe");
+		filter.doFilter(request, response, new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+				response.getOutputStream().write("héllo".getBytes(StandardCharsets.UTF_8));
+			}
+		});
+
+		assertThat(body.size()).isEqualTo(6);
+		assertThat(appender.list).hasSize(1);
+		assertThat(appender.list.get(0).getFormattedMessage()).matches(
+				"method=GET uri=/users/\\{id\\} status=200 bytes=6 duration_us=\\d+ requestId=abc123 userId=\"john doe\"");
+	}
+
+	@Test
+	public void async_response_written_through_writer_should_be_sent_and_counted() throws Exception {
+		AccessLogFilter filter = new AccessLogFilter();
+		filter.setLoggerName("access.test");
+		filter.setCountBytes(true);
+
+		final List<AsyncListener> listeners = new ArrayList<>();
+		HttpServletRequest request = new HttpServletRequestWrapper(stub(HttpServletRequest.class)) {
+			@Override
+			public String getMethod() {
+				return "GET";
+			}
+
+			@Override
+			public String getRequestURI() {
+				return "/stream";
+			}
+
+			@Override
+			public boolean isAsyncStarted() {
+				return true;
+			}
+
+			@Override
+			public AsyncContext getAsyncContext() {
+				return new RecordingAsyncContext(listeners);
+			}
+		};
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		StubContainerResponse response = new StubContainerResponse(body);
+
+		final List<PrintWriter> writers = new ArrayList<>();
+		filter.doFilter(request, response, new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+				writers.add(response.getWriter());
+				try {
+					response.getOutputStream();
+					fail("getOutputStream() after getWriter() should be rejected");
+				} catch (IllegalStateException e) {
+					// expected
+				}
+			}
+		});
+		assertThat(appender.list).isEmpty();
+
+		// written asynchronously, not flushed by the application
+		writers.get(0).print("héllo ");
+		writers.get(0).println("wörld 😀");
+		// the container completes the response, then notifies listeners
+		response.complete();
+		String sent = "héllo wörld 😀" + System.lineSeparator();
+		assertThat(new String(body.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(sent);
+		for (AsyncListener listener : listeners) {
+			listener.onComplete(null);
+		}
+
+		assertThat(appender.list).hasSize(1);
+		assertThat(appender.list.get(0).getFormattedMessage()).contains(" bytes=" + sent.getBytes(StandardCharsets.UTF_8).length + " ");
+	}
+
+	/**
+	 * Response with the container's own output stream and writer (sharing the
+	 * same buffer, flushed upon completion)
+	 */
+	private static class StubContainerResponse extends HttpServletResponseWrapper {
+		private final ByteArrayOutputStream body;
+		private PrintWriter writer;
+
+		StubContainerResponse(ByteArrayOutputStream body) {
+			super(stub(HttpServletResponse.class));
+			this.body = body;
+		}
+
+		@Override
+		public int getStatus() {
+			return 200;
+		}
+
+		@Override
+		public String getCharacterEncoding() {
+			return "UTF-8";
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			return new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					body.write(b);
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setWriteListener(WriteListener writeListener) {
+				}
+			};
+		}
+
+		@Override
+		public PrintWriter getWriter() {
+			if (writer == null) {
+				writer = new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+			}
+			return writer;
+		}
+
+		void complete() {
+			if (writer != null) {
+				writer.flush();
+			}
+		}
+	}
+
+	/**
+	 * Async context that records listeners
+	 */
+	private static class RecordingAsyncContext implements AsyncContext {
+		private final List<AsyncListener> listeners;
+
+		RecordingAsyncContext(List<AsyncListener> listeners) {
+			this.listeners = listeners;
+		}
+
+		@Override
+		public void addListener(AsyncListener listener) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public void addListener(AsyncListener listener, ServletRequest request, ServletResponse response) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public ServletRequest getRequest() {
+			return null;
+		}
+
+		@Override
+		public ServletResponse getResponse() {
+			return null;
+		}
+
+		@Override
+		public boolean hasOriginalRequestAndResponse() {
+			return true;
+		}
+
+		@Override
+		public void dispatch() {
+		}
+
+		@Override
+		public void dispatch(String path) {
+		}
+
+		@Override
+		public void dispatch(ServletContext context, String path) {
+		}
+
+		@Override
+		public void complete() {
+		}
+
+		@Override
+		public void start(Runnable run) {
+		}
+
+		@Override
+		public <T extends AsyncListener> T createListener(Class<T> clazz) {
+			return null;
+		}
+
+		@Override
+		public void setTimeout(long timeout) {
+		}
+
+		@Override
+		public long getTimeout() {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.orange.common.logging.web;
+
+import static com.orange.common.logging.Stubs.stub;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.MDC;
+import org.slf4j.spi.MDCAdapter;
+
+import com.orange.common.logging.mdc.ArrayMdcAdapter;
+
+public class PrincipalFilterTest {
+	private static MDCAdapter previous;
+
+	@BeforeClass
+	public static void install() {
+		previous = MDC.getMDCAdapter();
+		ArrayMdcAdapter.install();
+	}
+
+	@AfterClass
+	public static void uninstall() {
+		MDC.clear();
+		ArrayMdcAdapter.setMdcAdapter(previous);
+	}
+
+	private static HttpServletRequest request(Map<String, Object> attributes) {
+		Principal principal = new Principal() {
+			@Override
+			public String getName() {
+				return "john.doe@example.com";
+			}
+		};
+		return stub(HttpServletRequest.class, Collections.<String, Object> singletonMap("getUserPrincipal", principal), attributes);
+	}
+
+	private static Map<String, Object> filter(PrincipalFilter filter, ServletRequest request) throws Exception {
+		final Map<String, Object> seen = new HashMap<>();
+		filter.doFilter(request, stub(HttpServletResponse.class), new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) {
+				seen.put("attribute", request.getAttribute("track.userId"));
+				seen.put("mdc", MDC.get("userId"));
+			}
+		});
+		assertThat(MDC.get("userId")).isNull();
+		return seen;
+	}
+
+	@Test
+	public void principal_should_be_hashed() throws Exception {
+		PrincipalFilter filter = new PrincipalFilter();
+		filter.setHashAlgorithm("hashcode");
+		Map<String, Object> attributes = new HashMap<>();
+
+		Map<String, Object> seen = filter(filter, request(attributes));
+
+		String hash = String.format("%08x", "john.doe@example.com".hashCode());
+		assertThat(seen).containsEntry("attribute", hash).containsEntry("mdc", hash);
+		assertThat(attributes).containsEntry("track.userId", hash);
+	}
+
+	@Test
+	public void lazy_principal_should_be_exposed_as_string_attribute() throws Exception {
+		PrincipalFilter filter = new PrincipalFilter();
+		filter.setHashAlgorithm("hashcode");
+		filter.setLazy(true);
+		Map<String, Object> attributes = new HashMap<>();
+
+		Map<String, Object> seen = filter(filter, request(attributes));
+
+		String hash = String.format("%08x", "john.doe@example.com".hashCode());
+		assertThat(seen).containsEntry("attribute", hash).containsEntry("mdc", hash);
+		// the lazy value is never stored in the request
+		assertThat(attributes).doesNotContainKey("track.userId");
+	}
+}